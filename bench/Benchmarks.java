@@ -0,0 +1,21 @@
+import java.io.IOException;
+
+/**
+ * Runs every benchmark. Pass a regular expression to only run the benchmarks
+ * whose names it finds, for example {@code "search\.partial"} or
+ * {@code "/16$"}, and -warmups, -iterations or -time to change how long each
+ * one runs.
+ */
+public class Benchmarks {
+
+	public static void main(String[] args) throws IOException {
+		Microbenchmark harness = new Microbenchmark(args);
+		new TextBenchmark().run(harness);
+		new InvertedIndexBenchmark().run(harness);
+		new ThreadSafeIndexBenchmark().run(harness);
+		new SearchBenchmark(2000).run(harness);
+		new WorkQueueBenchmark().run(harness);
+		new JsonWriterBenchmark(1000).run(harness);
+		new LoggingBenchmark().run(harness);
+	}
+}
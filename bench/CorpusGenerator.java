@@ -0,0 +1,159 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Writes a reproducible directory tree of text files and a matching query file
+ * from a {@link SyntheticCorpus}, to load test the search engine with data we
+ * cannot ship. The vocabulary follows a Zipf distribution, the number of words
+ * in each file follows a log-normal distribution, and files are spread over
+ * nested subdirectories.
+ */
+public class CorpusGenerator {
+
+	/** The number of words on each line of a file. */
+	public static final int LINE_WORDS = 12;
+
+	private final SyntheticCorpus corpus;
+	private final Random random;
+
+	/**
+	 * Initializes the generator.
+	 *
+	 * @param seed       the seed for every random choice
+	 * @param vocabulary the number of distinct words
+	 * @param exponent   the Zipf exponent of the vocabulary
+	 */
+	public CorpusGenerator(long seed, int vocabulary, double exponent) {
+		this.corpus = new SyntheticCorpus(seed, vocabulary, exponent);
+		this.random = corpus.random();
+	}
+
+	/**
+	 * Writes the text files. The number of words in a file is log-normal, so most
+	 * files are close to the median size and a few are much larger.
+	 *
+	 * @param root   the directory to write the files under
+	 * @param files  the number of files
+	 * @param median the median number of words in a file
+	 * @param spread how much the file sizes vary, where 0 makes every file the
+	 *               median size
+	 * @param depth  the deepest a file can be nested under the root
+	 * @param fanout the number of subdirectories in each directory
+	 * @return the total number of words written
+	 * @throws IOException if a file cannot be written
+	 */
+	public long writeCorpus(Path root, int files, int median, double spread, int depth, int fanout)
+			throws IOException {
+		long total = 0;
+		for (int i = 0; i < files; i++) {
+			Path directory = root;
+			int level = depth > 0 && fanout > 0 ? random.nextInt(depth + 1) : 0;
+			for (int j = 0; j < level; j++) {
+				directory = directory.resolve("dir" + random.nextInt(fanout));
+			}
+			Files.createDirectories(directory);
+
+			int words = Math.max(1, (int) Math.round(median * Math.exp(spread * random.nextGaussian())));
+			total += words;
+			try (BufferedWriter writer = Files.newBufferedWriter(directory.resolve(String.format("file%05d.txt", i)),
+					StandardCharsets.UTF_8)) {
+				for (int written = 0; written < words; written += LINE_WORDS) {
+					writer.write(corpus.line(Math.min(LINE_WORDS, words - written)));
+					writer.newLine();
+				}
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * Writes the query file, one query per line. Query words are drawn from the
+	 * same distribution as the text, so common words are searched more often.
+	 *
+	 * @param path     the query file to write
+	 * @param queries  the number of queries
+	 * @param words    the most words in a query
+	 * @param prefixes the percent of query words cut down to a prefix, for partial
+	 *                 searches
+	 * @param repeats  the percent of queries that repeat an earlier query
+	 * @throws IOException if the file cannot be written
+	 */
+	public void writeQueries(Path path, int queries, int words, int prefixes, int repeats) throws IOException {
+		ArrayList<String> written = new ArrayList<String>(queries);
+		if (path.getParent() != null) {
+			Files.createDirectories(path.getParent());
+		}
+		try (BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+			for (int i = 0; i < queries; i++) {
+				String query;
+				if (!written.isEmpty() && random.nextInt(100) < repeats) {
+					query = written.get(random.nextInt(written.size()));
+				} else {
+					StringBuilder builder = new StringBuilder();
+					int count = 1 + random.nextInt(Math.max(1, words));
+					for (int j = 0; j < count; j++) {
+						if (j > 0) {
+							builder.append(' ');
+						}
+						builder.append(random.nextInt(100) < prefixes ? corpus.prefix(2 + random.nextInt(3)) : corpus.word());
+					}
+					query = builder.toString();
+				}
+				written.add(query);
+				writer.write(query);
+				writer.newLine();
+			}
+		}
+	}
+
+	/**
+	 * Parses a number that may have a fractional part.
+	 *
+	 * @param map          the parsed arguments
+	 * @param flag         the flag of the number
+	 * @param defaultValue the value if the flag is missing or not a number
+	 * @return the number
+	 */
+	private static double getDouble(ArgumentMap map, String flag, double defaultValue) {
+		try {
+			return Double.parseDouble(map.getString(flag, Double.toString(defaultValue)));
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Generates a corpus and query file from the command-line arguments, for
+	 * example:
+	 *
+	 * <pre>
+	 * java CorpusGenerator -output corpus -query queries.txt -files 1000 -words 2000
+	 * </pre>
+	 *
+	 * @param args the command-line arguments
+	 * @throws IOException if a file cannot be written
+	 */
+	public static void main(String[] args) throws IOException {
+		ArgumentMap map = new ArgumentMap(args);
+		CorpusGenerator generator = new CorpusGenerator(map.getInteger("-seed", 42),
+				map.getInteger("-vocabulary", 50_000), getDouble(map, "-exponent", 1.1));
+
+		Path output = map.getPath("-output", Paths.get("corpus"));
+		long words = generator.writeCorpus(output, map.getInteger("-files", 1000), map.getInteger("-words", 2000),
+				getDouble(map, "-spread", 0.75), map.getInteger("-depth", 3), map.getInteger("-fanout", 4));
+		System.out.println("Wrote " + words + " words to " + output);
+
+		if (map.hasFlag("-query")) {
+			Path query = map.getPath("-query", Paths.get("queries.txt"));
+			generator.writeQueries(query, map.getInteger("-queries", 1000), map.getInteger("-querywords", 3),
+					map.getInteger("-prefix", 30), map.getInteger("-repeat", 20));
+			System.out.println("Wrote queries to " + query);
+		}
+	}
+}
@@ -0,0 +1,64 @@
+/**
+ * Benchmarks adding words to the single-threaded {@link InvertedIndex}, one at
+ * a time and a whole document at once. Results are per word added.
+ */
+public class InvertedIndexBenchmark {
+
+	/** The number of words in each document. */
+	private static final int WORDS = 1000;
+
+	/** The number of documents added before starting over with a new index. */
+	private static final int DOCUMENTS = 200;
+
+	private final String[][] documents = new String[DOCUMENTS][];
+	private InvertedIndex index;
+	private int next;
+
+	/**
+	 * Initializes the benchmark with reproducible documents.
+	 */
+	public InvertedIndexBenchmark() {
+		SyntheticCorpus corpus = new SyntheticCorpus(42, 20_000, 1.1);
+		for (int i = 0; i < DOCUMENTS; i++) {
+			documents[i] = corpus.words(WORDS);
+		}
+	}
+
+	private void newIndex() {
+		index = new InvertedIndex();
+		next = 0;
+	}
+
+	private String location() {
+		next++;
+		if (next % DOCUMENTS == 0) { // keeps the index from growing without bound
+			index = new InvertedIndex();
+		}
+		return "doc" + next + ".txt";
+	}
+
+	/**
+	 * Runs every benchmark.
+	 *
+	 * @param harness the harness to run with
+	 */
+	public void run(Microbenchmark harness) {
+		harness.run("index.add", 1, WORDS, this::newIndex, () -> {
+			String location = location();
+			String[] words = documents[next % DOCUMENTS];
+			for (int i = 0; i < words.length; i++) {
+				index.add(words[i], i + 1, location);
+			}
+			return index;
+		});
+		harness.run("index.addAll", 1, WORDS, this::newIndex, () -> {
+			String location = location();
+			index.addAll(documents[next % DOCUMENTS], location);
+			return index;
+		});
+	}
+
+	public static void main(String[] args) {
+		new InvertedIndexBenchmark().run(new Microbenchmark(args));
+	}
+}
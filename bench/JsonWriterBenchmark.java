@@ -0,0 +1,116 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Benchmarks writing the index and the search results as JSON with
+ * {@link TreeJSONWriter}. The in-memory benchmarks write to a writer that
+ * throws everything away, so only the formatting is measured.
+ */
+public class JsonWriterBenchmark {
+
+	/** The thread counts to write the index file with. */
+	private static final int[] THREADS = { 1, 2, 4, 8 };
+
+	private final TreeMap<String, TreeMap<String, TreeSet<Integer>>> index;
+	private final TreeMap<String, ArrayList<SearchResult>> results;
+
+	/**
+	 * A writer that throws away everything written to it.
+	 */
+	private static class NullWriter extends Writer {
+		@Override
+		public void write(char[] buffer, int offset, int length) {
+		}
+
+		@Override
+		public void write(String text, int offset, int length) {
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	/**
+	 * Initializes the benchmark with an index of reproducible documents, and the
+	 * results of searching for the most common words.
+	 *
+	 * @param documents the number of documents in the index
+	 */
+	public JsonWriterBenchmark(int documents) {
+		SyntheticCorpus corpus = new SyntheticCorpus(42, 20_000, 1.1);
+		TreeMap<String, Integer> locations = new TreeMap<String, Integer>();
+		index = new TreeMap<String, TreeMap<String, TreeSet<Integer>>>();
+		for (int i = 0; i < documents; i++) {
+			String location = "doc" + i + ".txt";
+			String[] words = corpus.words(200 + corpus.random().nextInt(800));
+			for (int j = 0; j < words.length; j++) {
+				index.computeIfAbsent(words[j], w -> new TreeMap<>()).computeIfAbsent(location, l -> new TreeSet<>())
+						.add(j + 1);
+			}
+			locations.put(location, words.length);
+		}
+
+		results = new TreeMap<String, ArrayList<SearchResult>>();
+		for (String word : corpus.vocabulary()) {
+			var posting = index.get(word);
+			if (posting == null) {
+				continue;
+			}
+			ArrayList<SearchResult> wordResults = new ArrayList<SearchResult>();
+			for (var entry : posting.entrySet()) {
+				SearchResult result = new SearchResult(entry.getKey(), locations.get(entry.getKey()));
+				result.updateResult(entry.getValue().size());
+				wordResults.add(result);
+			}
+			wordResults.sort(null);
+			results.put(word, wordResults);
+			if (results.size() == 1000) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Runs every benchmark.
+	 *
+	 * @param harness the harness to run with
+	 * @throws IOException if the index file cannot be written
+	 */
+	public void run(Microbenchmark harness) throws IOException {
+		harness.run("json.indexInMemory", 1, () -> {
+			TreeJSONWriter.asDoubleNestedObject(index, new NullWriter(), 0);
+			return index;
+		});
+		harness.run("json.resultsInMemory", 1, () -> {
+			TreeJSONWriter.asSearchResult(results, new NullWriter(), 0);
+			return results;
+		});
+
+		// includes the disk, and writes ranges of words in parallel
+		Path output = Files.createTempFile("index", ".json");
+		try {
+			for (int threads : THREADS) {
+				harness.run("json.indexToFile/" + threads, 1, () -> {
+					TreeJSONWriter.asNestedObject(index, output, threads);
+					return output;
+				});
+			}
+		} finally {
+			Files.deleteIfExists(output);
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		new JsonWriterBenchmark(1000).run(new Microbenchmark(args));
+	}
+}
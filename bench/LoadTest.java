@@ -0,0 +1,322 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.stream.Stream;
+
+import opennlp.tools.stemmer.snowball.SnowballStemmer;
+
+/**
+ * Runs the whole pipeline of the search engine, building the index, searching
+ * and writing the results, over every combination of corpus size and number of
+ * threads. Each run reports the time of every phase, the documents, words and
+ * queries per second, the latency percentiles of single queries, the peak heap
+ * and the time spent in garbage collection. The report is written as JSON so
+ * runs of different versions can be compared.
+ *
+ * <pre>
+ * java LoadTest -files 100,1000 -threads 1,2,4,8 -words 1000 -queries 1000 -report loadtest.json
+ * </pre>
+ */
+public class LoadTest {
+
+	private final long seed;
+	private final int words;
+	private final int queries;
+	private final boolean exact;
+
+	/**
+	 * Initializes the load test.
+	 *
+	 * @param seed    the seed of the generated corpora
+	 * @param words   the median number of words in each file
+	 * @param queries the number of queries to search
+	 * @param exact   whether to search for exact words or prefixes
+	 */
+	public LoadTest(long seed, int words, int queries, boolean exact) {
+		this.seed = seed;
+		this.words = words;
+		this.queries = queries;
+		this.exact = exact;
+	}
+
+	/**
+	 * The measurements of a single run.
+	 */
+	private static class Run {
+		private final LinkedHashMap<String, Number> values = new LinkedHashMap<String, Number>();
+
+		private void put(String name, Number value) {
+			values.put(name, value);
+		}
+
+		private void write(BufferedWriter writer, boolean last) throws IOException {
+			writer.write("\t{");
+			int i = 0;
+			for (var entry : values.entrySet()) {
+				writer.write(i++ == 0 ? "" : ",");
+				writer.newLine();
+				writer.write("\t\t\"" + entry.getKey() + "\": " + entry.getValue());
+			}
+			writer.newLine();
+			writer.write(last ? "\t}" : "\t},");
+			writer.newLine();
+		}
+
+		@Override
+		public String toString() {
+			return values.toString();
+		}
+	}
+
+	/**
+	 * Runs the pipeline once.
+	 *
+	 * @param corpus  the directory of text files
+	 * @param query   the query file
+	 * @param files   the number of text files
+	 * @param total   the number of words in the text files
+	 * @param threads the number of threads
+	 * @param output  a directory to write the output files to
+	 * @return the measurements
+	 * @throws IOException if a file cannot be read or written
+	 */
+	public Run run(Path corpus, Path query, int files, long total, int threads, Path output) throws IOException {
+		System.gc();
+		List<MemoryPoolMXBean> pools = ManagementFactory.getMemoryPoolMXBeans();
+		for (var pool : pools) {
+			pool.resetPeakUsage();
+		}
+		long gcTime = gcTime();
+		long gcCount = gcCount();
+
+		long start = System.nanoTime();
+		ThreadSafeInvertedIndex index = new MultithreadedTextFileBuilder().multithreadedTraverse(corpus,
+				new ThreadSafeInvertedIndex(), threads);
+		long built = System.nanoTime();
+
+		MultiThreadedQueryParser parser = new MultiThreadedQueryParser(index);
+		parser.parse(query, exact, threads);
+		long searched = System.nanoTime();
+
+		index.toJson(output.resolve("index.json"), threads);
+		parser.toJson(output.resolve("results.json"));
+		long written = System.nanoTime();
+
+		ArrayList<TreeSet<String>> lines = queries(query);
+		long[] latencies = latencies(index, lines, threads);
+		long timed = System.nanoTime();
+
+		long peak = 0;
+		for (var pool : pools) {
+			if (pool.getType() == MemoryType.HEAP) {
+				peak += pool.getPeakUsage().getUsed();
+			}
+		}
+
+		Run run = new Run();
+		run.put("files", files);
+		run.put("words", total);
+		run.put("queries", lines.size());
+		run.put("threads", threads);
+		run.put("buildSeconds", seconds(built - start));
+		run.put("searchSeconds", seconds(searched - built));
+		run.put("writeSeconds", seconds(written - searched));
+		run.put("totalSeconds", seconds(written - start));
+		run.put("documentsPerSecond", Math.round(files / seconds(built - start)));
+		run.put("wordsPerSecond", Math.round(total / seconds(built - start)));
+		run.put("queriesPerSecond", Math.round(lines.size() / seconds(searched - built)));
+		run.put("latencyQueriesPerSecond", Math.round(lines.size() / seconds(timed - written)));
+		run.put("latencyP50Millis", millis(percentile(latencies, 50)));
+		run.put("latencyP90Millis", millis(percentile(latencies, 90)));
+		run.put("latencyP99Millis", millis(percentile(latencies, 99)));
+		run.put("latencyMaxMillis", millis(percentile(latencies, 100)));
+		run.put("peakHeapBytes", peak);
+		run.put("gcMillis", gcTime() - gcTime);
+		run.put("gcCount", gcCount() - gcCount);
+		return run;
+	}
+
+	/**
+	 * Reads and stems the distinct queries of the query file, the same way the
+	 * query parsers do.
+	 *
+	 * @param query the query file
+	 * @return the distinct queries
+	 * @throws IOException if the file cannot be read
+	 */
+	private static ArrayList<TreeSet<String>> queries(Path query) throws IOException {
+		SnowballStemmer stemmer = new SnowballStemmer(SnowballStemmer.ALGORITHM.ENGLISH);
+		TreeSet<String> seen = new TreeSet<String>();
+		ArrayList<TreeSet<String>> queries = new ArrayList<TreeSet<String>>();
+		try (BufferedReader reader = Files.newBufferedReader(query, StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				TreeSet<String> words = new TreeSet<String>();
+				for (String word : TextParser.parse(line)) {
+					words.add(stemmer.stem(word).toString());
+				}
+				if (!words.isEmpty() && seen.add(String.join(" ", words))) {
+					queries.add(words);
+				}
+			}
+		}
+		return queries;
+	}
+
+	/**
+	 * Times every query on its own, with as many queries in flight as there are
+	 * threads.
+	 *
+	 * @param index   the index to search
+	 * @param queries the queries to search
+	 * @param threads the number of threads
+	 * @return the latency of every query in nanoseconds, sorted
+	 */
+	private long[] latencies(ThreadSafeInvertedIndex index, ArrayList<TreeSet<String>> queries, int threads) {
+		long[] latencies = new long[queries.size()];
+		WorkQueue minions = new WorkQueue(threads);
+		for (int i = 0; i < queries.size(); i++) {
+			int id = i;
+			minions.execute(() -> {
+				long start = System.nanoTime();
+				index.results(List.of(index.counts(new QueryPlan(queries.get(id), exact))));
+				latencies[id] = System.nanoTime() - start;
+			});
+		}
+		minions.finish();
+		Arrays.sort(latencies);
+		return latencies;
+	}
+
+	/**
+	 * Returns the nearest-rank percentile of sorted values.
+	 *
+	 * @param sorted  the sorted values
+	 * @param percent the percentile
+	 * @return the value at the percentile, or 0 if there are no values
+	 */
+	private static long percentile(long[] sorted, int percent) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+		return sorted[Math.max(0, rank - 1)];
+	}
+
+	private static double seconds(long nanos) {
+		return nanos / 1e9;
+	}
+
+	private static double millis(long nanos) {
+		return Math.round(nanos / 1e3) / 1e3;
+	}
+
+	private static long gcTime() {
+		long time = 0;
+		for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+			time += Math.max(0, collector.getCollectionTime());
+		}
+		return time;
+	}
+
+	private static long gcCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += Math.max(0, collector.getCollectionCount());
+		}
+		return count;
+	}
+
+	/**
+	 * Parses a comma-separated list of numbers.
+	 *
+	 * @param map          the parsed arguments
+	 * @param flag         the flag of the list
+	 * @param defaultValue the list if the flag is missing
+	 * @return the numbers
+	 */
+	private static int[] getIntegers(ArgumentMap map, String flag, String defaultValue) {
+		return Stream.of(map.getString(flag, defaultValue).split(",")).map(String::trim).mapToInt(Integer::parseInt)
+				.toArray();
+	}
+
+	/**
+	 * Deletes a directory and everything in it.
+	 *
+	 * @param directory the directory to delete
+	 * @throws IOException if something cannot be deleted
+	 */
+	private static void delete(Path directory) throws IOException {
+		try (Stream<Path> paths = Files.walk(directory)) {
+			paths.sorted(Comparator.reverseOrder()).forEach(path -> {
+				try {
+					Files.delete(path);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Runs the load test from the command-line arguments.
+	 *
+	 * @param args the command-line arguments
+	 * @throws IOException if a file cannot be read or written
+	 */
+	public static void main(String[] args) throws IOException {
+		ArgumentMap map = new ArgumentMap(args);
+		int[] corpora = getIntegers(map, "-files", "100,1000");
+		int[] threadCounts = getIntegers(map, "-threads", "1,2,4,8");
+		long seed = map.getInteger("-seed", 42);
+		LoadTest test = new LoadTest(seed, map.getInteger("-words", 1000), map.getInteger("-queries", 1000),
+				map.hasFlag("-exact"));
+		Path report = map.getPath("-report", Paths.get("loadtest.json"));
+
+		ArrayList<Run> runs = new ArrayList<Run>();
+		Path work = Files.createTempDirectory("loadtest");
+		try {
+			for (int files : corpora) {
+				Path corpus = work.resolve("corpus" + files);
+				Path query = work.resolve("queries" + files + ".txt");
+				CorpusGenerator generator = new CorpusGenerator(seed, 50_000, 1.1);
+				long total = generator.writeCorpus(corpus, files, test.words, 0.75, 3, 4);
+				generator.writeQueries(query, test.queries, 3, test.exact ? 0 : 30, 20);
+
+				for (int threads : threadCounts) {
+					Run run = test.run(corpus, query, files, total, threads, work);
+					System.out.println(run);
+					runs.add(run);
+				}
+			}
+		} finally {
+			delete(work);
+		}
+
+		try (BufferedWriter writer = Files.newBufferedWriter(report, StandardCharsets.UTF_8)) {
+			writer.write("[");
+			writer.newLine();
+			for (int i = 0; i < runs.size(); i++) {
+				runs.get(i).write(writer, i == runs.size() - 1);
+			}
+			writer.write("]");
+			writer.newLine();
+		}
+		System.out.println("Wrote " + runs.size() + " runs to " + report);
+	}
+}
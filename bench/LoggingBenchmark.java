@@ -0,0 +1,50 @@
+import java.util.TreeSet;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Benchmarks what a debug message costs on a hot path with the configuration in
+ * log4j2.xml, comparing a message built by concatenation with a parameterized
+ * one. Run it with the root level at INFO to see the cost when debug messages
+ * are off, and at ALL to see the cost of writing them to debug.log.
+ */
+public class LoggingBenchmark {
+	public static final Logger log = LogManager.getLogger(Driver.class);
+
+	private final TreeSet<String> queries = new TreeSet<String>();
+	private int pending;
+
+	/**
+	 * Initializes the benchmark with a query like the ones the minions log.
+	 */
+	public LoggingBenchmark() {
+		for (String word : new SyntheticCorpus(42, 1000, 1.1).words(3)) {
+			queries.add(word);
+		}
+	}
+
+	/**
+	 * Runs every benchmark.
+	 *
+	 * @param harness the harness to run with
+	 */
+	public void run(Microbenchmark harness) {
+		harness.run("logging.concatenated", 1, () -> {
+			pending++;
+			log.debug("Pending is:" + pending);
+			log.debug("Working on queries: " + queries.toString());
+			return queries;
+		});
+		harness.run("logging.parameterized", 1, () -> {
+			pending++;
+			log.debug("Pending is: {}", pending);
+			log.debug("Working on queries: {}", queries);
+			return queries;
+		});
+	}
+
+	public static void main(String[] args) {
+		new LoggingBenchmark().run(new Microbenchmark(args));
+	}
+}
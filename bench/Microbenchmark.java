@@ -0,0 +1,165 @@
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.regex.Pattern;
+
+/**
+ * A small harness for timing the hot paths of the search engine, in the spirit
+ * of JMH. Every benchmark is run for a few warmup iterations so the JIT compiler
+ * has settled, then for several measured iterations of a fixed length. The
+ * average throughput and its spread over the measured iterations is printed.
+ *
+ * The result of every operation is folded into a value that is published at the
+ * end of each iteration, so the JIT compiler cannot throw the work away.
+ */
+public class Microbenchmark {
+
+	/**
+	 * A single operation to time.
+	 */
+	public interface Operation {
+		/**
+		 * @return anything the operation computed, so it is not optimized away
+		 * @throws Exception if the operation fails
+		 */
+		Object run() throws Exception;
+	}
+
+	/** The default number of warmup iterations. */
+	public static final int WARMUPS = 3;
+
+	/** The default number of measured iterations. */
+	public static final int ITERATIONS = 5;
+
+	/** The default length of each iteration in milliseconds. */
+	public static final long TIME = 1000;
+
+	/** Published at the end of every iteration. */
+	private static volatile int sink;
+
+	private final Pattern filter;
+	private final int warmups;
+	private final int iterations;
+	private final long time;
+
+	/**
+	 * Initializes the harness from the command-line arguments. An optional
+	 * regular expression as the first argument only runs the benchmarks whose names it finds, and the
+	 * -warmups, -iterations and -time flags override the defaults.
+	 *
+	 * @param args the command-line arguments
+	 */
+	public Microbenchmark(String[] args) {
+		ArgumentMap map = new ArgumentMap(args);
+		boolean filtered = args.length > 0 && !ArgumentMap.isFlag(args[0]);
+		this.filter = filtered ? Pattern.compile(args[0]) : null;
+		this.warmups = map.getInteger("-warmups", WARMUPS);
+		this.iterations = map.getInteger("-iterations", ITERATIONS);
+		this.time = map.getInteger("-time", (int) TIME);
+	}
+
+	/**
+	 * Times an operation on a single thread.
+	 *
+	 * @param name       the name of the benchmark
+	 * @param operations the number of operations each call does, such as the
+	 *                   number of words added
+	 * @param operation  the operation to time
+	 */
+	public void run(String name, int operations, Operation operation) {
+		run(name, 1, operations, null, operation);
+	}
+
+	/**
+	 * Times an operation run by several threads at once. The throughput is added
+	 * up over all of the threads.
+	 *
+	 * @param name       the name of the benchmark
+	 * @param threads    the number of threads calling the operation
+	 * @param operations the number of operations each call does
+	 * @param setup      run before every iteration, or null
+	 * @param operation  the operation to time
+	 */
+	public void run(String name, int threads, int operations, Runnable setup, Operation operation) {
+		if (filter != null && !filter.matcher(name).find()) {
+			return;
+		}
+
+		ArrayList<Double> measured = new ArrayList<Double>();
+		for (int i = 0; i < warmups + iterations; i++) {
+			if (setup != null) {
+				setup.run();
+			}
+			double throughput = (double) iteration(threads, operation) * operations * 1000 / time;
+			if (i >= warmups) {
+				measured.add(throughput);
+			}
+		}
+
+		double mean = 0;
+		for (double throughput : measured) {
+			mean += throughput;
+		}
+		mean /= measured.size();
+		double deviation = 0;
+		for (double throughput : measured) {
+			deviation += (throughput - mean) * (throughput - mean);
+		}
+		deviation = Math.sqrt(deviation / Math.max(1, measured.size() - 1));
+
+		System.out.println(String.format("%-48s %16.1f +- %12.1f ops/s", name, mean, deviation));
+	}
+
+	/**
+	 * Runs one iteration of the operation on every thread.
+	 *
+	 * @param threads   the number of threads
+	 * @param operation the operation to time
+	 * @return the number of calls over all threads
+	 */
+	private long iteration(int threads, Operation operation) {
+		CountDownLatch start = new CountDownLatch(1);
+		long[] calls = new long[threads];
+		Throwable[] failure = new Throwable[1];
+
+		ArrayList<Thread> workers = new ArrayList<Thread>();
+		for (int i = 0; i < threads; i++) {
+			int id = i;
+			Thread worker = new Thread(() -> {
+				try {
+					start.await();
+					long deadline = System.nanoTime() + time * 1_000_000;
+					long count = 0;
+					int hash = 0;
+					while (System.nanoTime() < deadline) {
+						hash ^= System.identityHashCode(operation.run());
+						count++;
+					}
+					calls[id] = count;
+					sink ^= hash;
+				} catch (Throwable e) {
+					failure[0] = e;
+				}
+			});
+			worker.start();
+			workers.add(worker);
+		}
+
+		start.countDown();
+		for (Thread worker : workers) {
+			try {
+				worker.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (failure[0] != null) {
+			throw new IllegalStateException("Benchmark failed", failure[0]);
+		}
+
+		long total = 0;
+		for (long count : calls) {
+			total += count;
+		}
+		return total;
+	}
+}
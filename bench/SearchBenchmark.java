@@ -0,0 +1,81 @@
+import java.util.ArrayList;
+import java.util.TreeSet;
+
+/**
+ * Benchmarks searching a prebuilt {@link InvertedIndex}. Partial searches are
+ * run with prefixes of different lengths, since a short prefix matches many more
+ * words in the index than a long one.
+ */
+public class SearchBenchmark {
+
+	/** The longest prefixes of the partial searches. */
+	private static final int[] PREFIXES = { 1, 2, 3, 5 };
+
+	/** The number of different queries searched in turn. */
+	private static final int QUERIES = 256;
+
+	/** The number of words in each query. */
+	private static final int WORDS = 2;
+
+	private final SyntheticCorpus corpus = new SyntheticCorpus(42, 20_000, 1.1);
+	private final InvertedIndex index = new InvertedIndex();
+	private int next;
+
+	/**
+	 * Initializes the benchmark with an index of reproducible documents.
+	 *
+	 * @param documents the number of documents in the index
+	 */
+	public SearchBenchmark(int documents) {
+		for (int i = 0; i < documents; i++) {
+			index.addAll(corpus.words(200 + corpus.random().nextInt(800)), "doc" + i + ".txt");
+		}
+	}
+
+	/**
+	 * Draws the queries to search in turn.
+	 *
+	 * @param prefix the longest prefix of each word, or 0 for whole words
+	 * @return the queries
+	 */
+	private ArrayList<TreeSet<String>> queries(int prefix) {
+		ArrayList<TreeSet<String>> queries = new ArrayList<TreeSet<String>>(QUERIES);
+		for (int i = 0; i < QUERIES; i++) {
+			TreeSet<String> query = new TreeSet<String>();
+			for (int j = 0; j < WORDS; j++) {
+				query.add(prefix == 0 ? corpus.word() : corpus.prefix(prefix));
+			}
+			queries.add(query);
+		}
+		return queries;
+	}
+
+	private int next() {
+		next = (next + 1) % QUERIES;
+		return next;
+	}
+
+	/**
+	 * Runs every benchmark.
+	 *
+	 * @param harness the harness to run with
+	 */
+	public void run(Microbenchmark harness) {
+		ArrayList<TreeSet<String>> exact = queries(0);
+		harness.run("search.exact", 1, () -> index.exactSearch(exact.get(next())));
+		harness.run("search.exactTop", 1, () -> index.topSearch(new QueryPlan(exact.get(next()), true), 10));
+
+		for (int prefix : PREFIXES) {
+			ArrayList<TreeSet<String>> partial = queries(prefix);
+			harness.run("search.partial/" + prefix, 1, () -> index.partialSearch(partial.get(next())));
+			harness.run("search.partialTop/" + prefix, 1,
+					() -> index.topSearch(new QueryPlan(partial.get(next()), false), 10));
+			harness.run("search.partialAnd/" + prefix, 1,
+					() -> index.andSearch(new QueryPlan(partial.get(next()), false)));
+		}
+	}
+
+	public static void main(String[] args) {
+		new SearchBenchmark(2000).run(new Microbenchmark(args));
+	}
+}
@@ -0,0 +1,132 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A stand-in client for the {@code -server} mode of {@link Driver}. Sends every
+ * line of a query file to the server as its own request, with as many requests
+ * in flight as there are threads, over connections that are kept open, and
+ * prints the throughput and latency percentiles. With {@code -print} the
+ * response of every query is printed instead.
+ *
+ * <pre>
+ * java SearchClient -port 8080 -query queries.txt -threads 8 -repeat 10 [-exact] [-mode and] [-top 10]
+ * </pre>
+ */
+public class SearchClient {
+
+	private final HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+	private final String base;
+
+	/**
+	 * Initializes the client.
+	 *
+	 * @param port       the port the server listens on
+	 * @param parameters the parameters to add to every query, such as
+	 *                   {@code &exact}
+	 */
+	public SearchClient(int port, String parameters) {
+		this.base = "http://localhost:" + port + "/search?" + parameters + "&q=";
+	}
+
+	/**
+	 * Sends a single query.
+	 *
+	 * @param line the query as typed
+	 * @return the response
+	 * @throws IOException          if the request failed
+	 * @throws InterruptedException if interrupted while waiting for the response
+	 */
+	public HttpResponse<String> search(String line) throws IOException, InterruptedException {
+		URI uri = URI.create(base + URLEncoder.encode(line, StandardCharsets.UTF_8));
+		return client.send(HttpRequest.newBuilder(uri).GET().build(), HttpResponse.BodyHandlers.ofString());
+	}
+
+	/**
+	 * Sends every query, with as many in flight as there are threads.
+	 *
+	 * @param lines   the queries
+	 * @param threads the number of threads
+	 * @return the latency of every query in nanoseconds, sorted
+	 */
+	public long[] latencies(List<String> lines, int threads) {
+		long[] latencies = new long[lines.size()];
+		AtomicInteger failed = new AtomicInteger();
+		WorkQueue minions = new WorkQueue(threads);
+		for (int i = 0; i < lines.size(); i++) {
+			int id = i;
+			minions.execute(() -> {
+				long start = System.nanoTime();
+				try {
+					if (search(lines.get(id)).statusCode() != 200) {
+						failed.incrementAndGet();
+					}
+				} catch (IOException | InterruptedException e) {
+					failed.incrementAndGet();
+				}
+				latencies[id] = System.nanoTime() - start;
+			});
+		}
+		minions.finish();
+		if (failed.get() > 0) {
+			System.out.println(failed.get() + " requests failed");
+		}
+		Arrays.sort(latencies);
+		return latencies;
+	}
+
+	/**
+	 * Returns the nearest-rank percentile of sorted values.
+	 *
+	 * @param sorted  the sorted values
+	 * @param percent the percentile
+	 * @return the value at the percentile, or 0 if there are no values
+	 */
+	private static long percentile(long[] sorted, int percent) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+		return sorted[Math.max(0, rank - 1)];
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		ArgumentMap map = new ArgumentMap(args);
+		String parameters = map.hasFlag("-exact") ? "exact" : "";
+		parameters += "&mode=" + map.getString("-mode", "or");
+		parameters += "&top=" + map.getInteger("-top", 0);
+		SearchClient client = new SearchClient(map.getInteger("-port", SearchServer.DEFAULT_PORT), parameters);
+
+		ArrayList<String> lines = new ArrayList<String>();
+		for (int i = map.getInteger("-repeat", 1); i > 0; i--) {
+			lines.addAll(Files.readAllLines(map.getPath("-query", Paths.get("queries.txt")), StandardCharsets.UTF_8));
+		}
+
+		if (map.hasFlag("-print")) {
+			for (var line : lines) {
+				System.out.println(client.search(line).body());
+			}
+			return;
+		}
+
+		client.latencies(lines.subList(0, Math.min(lines.size(), 100)), 1); // warms up the connection and server
+		long start = System.nanoTime();
+		long[] latencies = client.latencies(lines, map.getInteger("-threads", 4));
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		System.out.printf("%d queries in %.2f s, %.0f queries/s%n", lines.size(), seconds, lines.size() / seconds);
+		System.out.printf("latency p50 %.3f ms, p90 %.3f ms, p99 %.3f ms, max %.3f ms%n",
+				percentile(latencies, 50) / 1e6, percentile(latencies, 90) / 1e6, percentile(latencies, 99) / 1e6,
+				percentile(latencies, 100) / 1e6);
+	}
+}
@@ -0,0 +1,136 @@
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Random;
+
+/**
+ * A reproducible synthetic corpus for benchmarks and load tests. Words are made
+ * up of random letters and are drawn from a Zipf distribution, so a few words
+ * are very common and most are rare, like in real text. The same seed always
+ * gives the same corpus.
+ */
+public class SyntheticCorpus {
+
+	private final String[] vocabulary;
+	private final double[] cumulative;
+	private final Random random;
+
+	/**
+	 * Initializes the corpus.
+	 *
+	 * @param seed           the seed for every random choice
+	 * @param vocabularySize the number of distinct words
+	 * @param exponent       the Zipf exponent, where larger values make common
+	 *                       words more common
+	 */
+	public SyntheticCorpus(long seed, int vocabularySize, double exponent) {
+		this.random = new Random(seed);
+
+		LinkedHashSet<String> words = new LinkedHashSet<String>();
+		while (words.size() < vocabularySize) {
+			int length = 3 + random.nextInt(8);
+			StringBuilder word = new StringBuilder(length);
+			for (int i = 0; i < length; i++) {
+				word.append((char) ('a' + random.nextInt(26)));
+			}
+			words.add(word.toString());
+		}
+		this.vocabulary = words.toArray(new String[0]);
+
+		// the word of rank r is drawn with weight 1 / r^exponent
+		this.cumulative = new double[vocabularySize];
+		double total = 0;
+		for (int rank = 1; rank <= vocabularySize; rank++) {
+			total += 1 / Math.pow(rank, exponent);
+			cumulative[rank - 1] = total;
+		}
+		for (int i = 0; i < vocabularySize; i++) {
+			cumulative[i] /= total;
+		}
+	}
+
+	/**
+	 * @return the random number generator every choice is made with
+	 */
+	public Random random() {
+		return random;
+	}
+
+	/**
+	 * @return every distinct word, most common first
+	 */
+	public String[] vocabulary() {
+		return vocabulary;
+	}
+
+	/**
+	 * Draws a word from the Zipf distribution.
+	 *
+	 * @return a word
+	 */
+	public String word() {
+		int rank = Arrays.binarySearch(cumulative, random.nextDouble());
+		if (rank < 0) {
+			rank = -rank - 1;
+		}
+		return vocabulary[Math.min(rank, vocabulary.length - 1)];
+	}
+
+	/**
+	 * Draws several words from the Zipf distribution.
+	 *
+	 * @param count the number of words
+	 * @return the words
+	 */
+	public String[] words(int count) {
+		String[] words = new String[count];
+		for (int i = 0; i < count; i++) {
+			words[i] = word();
+		}
+		return words;
+	}
+
+	/**
+	 * Returns a line of raw text that still needs cleaning, with some capitalized
+	 * words, digits and punctuation mixed in.
+	 *
+	 * @param count the number of words
+	 * @return the line of text
+	 */
+	public String line(int count) {
+		StringBuilder line = new StringBuilder();
+		for (int i = 0; i < count; i++) {
+			String word = word();
+			if (random.nextInt(10) == 0) {
+				word = Character.toUpperCase(word.charAt(0)) + word.substring(1);
+			}
+			line.append(word);
+			switch (random.nextInt(20)) {
+			case 0:
+				line.append(',');
+				break;
+			case 1:
+				line.append(". ");
+				break;
+			case 2:
+				line.append(' ').append(random.nextInt(1000));
+				break;
+			default:
+				break;
+			}
+			line.append(' ');
+		}
+		return line.toString();
+	}
+
+	/**
+	 * Returns the start of a word drawn from the Zipf distribution, for partial
+	 * searches. Shorter prefixes match many more words in the index.
+	 *
+	 * @param length the longest the prefix can be
+	 * @return the prefix
+	 */
+	public String prefix(int length) {
+		String word = word();
+		return word.substring(0, Math.min(length, word.length()));
+	}
+}
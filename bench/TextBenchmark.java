@@ -0,0 +1,53 @@
+import opennlp.tools.stemmer.snowball.SnowballStemmer;
+
+/**
+ * Benchmarks cleaning, splitting and stemming text, which every word of every
+ * file goes through while building the index.
+ */
+public class TextBenchmark {
+
+	private static final int LINES = 1024;
+
+	private final String[] lines = new String[LINES];
+	private final String[] words;
+	private final SnowballStemmer stemmer = new SnowballStemmer(SnowballStemmer.ALGORITHM.ENGLISH);
+	private int next;
+
+	/**
+	 * Initializes the benchmark with reproducible lines of text.
+	 */
+	public TextBenchmark() {
+		SyntheticCorpus corpus = new SyntheticCorpus(42, 20_000, 1.1);
+		for (int i = 0; i < LINES; i++) {
+			lines[i] = corpus.line(12);
+		}
+		words = corpus.words(LINES);
+	}
+
+	private int next() {
+		next = (next + 1) & (LINES - 1);
+		return next;
+	}
+
+	/**
+	 * Runs every benchmark.
+	 *
+	 * @param harness the harness to run with
+	 */
+	public void run(Microbenchmark harness) {
+		harness.run("text.parse", 1, () -> TextParser.parse(lines[next()]));
+		harness.run("text.stem", 1, () -> stemmer.stem(words[next()]).toString());
+		harness.run("text.stemNewStemmer", 1, () -> TextFileStemmer.stemLine(words[next()]));
+		harness.run("text.parseAndStem", 1, () -> {
+			int length = 0;
+			for (String word : TextParser.parse(lines[next()])) {
+				length += stemmer.stem(word).length();
+			}
+			return length;
+		});
+	}
+
+	public static void main(String[] args) {
+		new TextBenchmark().run(new Microbenchmark(args));
+	}
+}
@@ -0,0 +1,146 @@
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Benchmarks how well {@link ThreadSafeInvertedIndex} holds up when many
+ * threads add to it at once, and when searches compete with those adds for the
+ * lock. Results are per word added or per query searched, over all threads.
+ */
+public class ThreadSafeIndexBenchmark {
+
+	/** The thread counts to run the contended benchmarks with. */
+	private static final int[] THREADS = { 1, 2, 4, 8, 16 };
+
+	/** The number of words in each document. */
+	private static final int WORDS = 500;
+
+	/** The number of distinct documents, shared by every thread. */
+	private static final int DOCUMENTS = 256;
+
+	/** The number of documents added before starting over with a new index. */
+	private static final int RESET = 2000;
+
+	private final String[][] documents = new String[DOCUMENTS][];
+	private final String[] queries;
+	private volatile ThreadSafeInvertedIndex index;
+	private final AtomicInteger added = new AtomicInteger();
+
+	/**
+	 * Initializes the benchmark with reproducible documents and queries.
+	 */
+	public ThreadSafeIndexBenchmark() {
+		SyntheticCorpus corpus = new SyntheticCorpus(42, 20_000, 1.1);
+		for (int i = 0; i < DOCUMENTS; i++) {
+			documents[i] = corpus.words(WORDS);
+		}
+		queries = corpus.words(DOCUMENTS);
+	}
+
+	private void newIndex() {
+		ThreadSafeInvertedIndex index = new ThreadSafeInvertedIndex();
+		for (int i = 0; i < DOCUMENTS; i++) { // so searches find something
+			add(index, i);
+		}
+		this.index = index;
+		added.set(0);
+	}
+
+	/**
+	 * Adds one document word by word to the shared index, the way the builder
+	 * minions do.
+	 *
+	 * @return the index
+	 */
+	private Object add() {
+		int next = added.incrementAndGet();
+		if (next % RESET == 0) { // keeps the index from growing without bound
+			index = new ThreadSafeInvertedIndex();
+		}
+		return add(index, next);
+	}
+
+	/**
+	 * Adds one document to the shared index with a single call, holding the write
+	 * lock once for every word.
+	 *
+	 * @return the index
+	 */
+	private Object addAll() {
+		int next = added.incrementAndGet();
+		if (next % RESET == 0) {
+			index = new ThreadSafeInvertedIndex();
+		}
+		index.addAll(documents[next % DOCUMENTS], "doc" + next + ".txt");
+		return index;
+	}
+
+	private Object add(ThreadSafeInvertedIndex index, int next) {
+		String location = "doc" + next + ".txt";
+		String[] words = documents[next % DOCUMENTS];
+		for (int i = 0; i < words.length; i++) {
+			index.add(words[i], i + 1, location);
+		}
+		return index;
+	}
+
+	/**
+	 * Does an exact search of one word on the shared index.
+	 *
+	 * @return the search results
+	 */
+	private Object search() {
+		TreeSet<String> words = new TreeSet<String>();
+		words.add(queries[ThreadLocalRandom.current().nextInt(DOCUMENTS)]);
+		ThreadSafeInvertedIndex index = this.index;
+		return index.results(List.of(index.counts(new QueryPlan(words, true))));
+	}
+
+	/**
+	 * Looks up how many locations a word was found at, one of the small lookups
+	 * that can skip the lock.
+	 *
+	 * @return the number of locations
+	 */
+	private Object locations() {
+		return index.locations(queries[ThreadLocalRandom.current().nextInt(DOCUMENTS)]);
+	}
+
+	/**
+	 * Runs every benchmark.
+	 *
+	 * @param harness the harness to run with
+	 */
+	public void run(Microbenchmark harness) {
+		for (int threads : THREADS) {
+			harness.run("threadSafe.add/" + threads, threads, WORDS, this::newIndex, this::add);
+		}
+		for (int threads : THREADS) {
+			harness.run("threadSafe.addAll/" + threads, threads, WORDS, this::newIndex, this::addAll);
+		}
+		for (int threads : THREADS) {
+			harness.run("threadSafe.search/" + threads, threads, 1, this::newIndex, this::search);
+		}
+
+		for (int threads : THREADS) {
+			harness.run("threadSafe.locations/" + threads, threads, 1, this::newIndex, this::locations);
+		}
+
+		// one thread in four adds while the others search
+		for (int threads : THREADS) {
+			if (threads >= 4) {
+				harness.run("threadSafe.mixed/" + threads, threads, 1, this::newIndex, () -> {
+					return ThreadLocalRandom.current().nextInt(4) == 0 ? add() : search();
+				});
+				harness.run("threadSafe.mixedLocations/" + threads, threads, 1, this::newIndex, () -> {
+					return ThreadLocalRandom.current().nextInt(4) == 0 ? add() : locations();
+				});
+			}
+		}
+	}
+
+	public static void main(String[] args) {
+		new ThreadSafeIndexBenchmark().run(new Microbenchmark(args));
+	}
+}
@@ -0,0 +1,82 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Benchmarks how many tasks the {@link WorkQueue} can run, both for tiny tasks
+ * where the cost of the queue itself dominates and for tasks that do about as
+ * much work as stemming a few words, with an unbounded queue and with a small
+ * capacity that either waits for room or runs tasks on the caller. Results are
+ * per task.
+ */
+public class WorkQueueBenchmark {
+
+	/** The thread counts of the queues. */
+	private static final int[] THREADS = { 1, 2, 4, 8, 16 };
+
+	/** The number of tasks queued on each call. */
+	private static final int TASKS = 1000;
+
+	private final LongAdder done = new LongAdder();
+
+	/**
+	 * Spins for a little while without being optimized away.
+	 */
+	private void work() {
+		long value = 0;
+		for (int i = 0; i < 2000; i++) {
+			value = value * 31 + i;
+		}
+		if (value == 0) {
+			done.increment();
+		}
+	}
+
+	/**
+	 * Runs every benchmark.
+	 *
+	 * @param harness the harness to run with
+	 */
+	public void run(Microbenchmark harness) {
+		for (int threads : THREADS) {
+			WorkQueue queue = new WorkQueue(threads);
+			harness.run("workQueue.empty/" + threads, 1, TASKS, null, () -> {
+				for (int i = 0; i < TASKS; i++) {
+					queue.execute(done::increment);
+				}
+				queue.await();
+				return done;
+			});
+			harness.run("workQueue.small/" + threads, 1, TASKS, null, () -> {
+				for (int i = 0; i < TASKS; i++) {
+					queue.execute(this::work);
+				}
+				queue.await();
+				return done;
+			});
+			queue.finish();
+
+			WorkQueue bounded = new WorkQueue(threads, 64, false);
+			harness.run("workQueue.bounded/" + threads, 1, TASKS, null, () -> {
+				for (int i = 0; i < TASKS; i++) {
+					bounded.execute(this::work);
+				}
+				bounded.await();
+				return done;
+			});
+			bounded.finish();
+
+			WorkQueue callerRuns = new WorkQueue(threads, 64, true);
+			harness.run("workQueue.callerRuns/" + threads, 1, TASKS, null, () -> {
+				for (int i = 0; i < TASKS; i++) {
+					callerRuns.execute(this::work);
+				}
+				callerRuns.await();
+				return done;
+			});
+			callerRuns.finish();
+		}
+	}
+
+	public static void main(String[] args) {
+		new WorkQueueBenchmark().run(new Microbenchmark(args));
+	}
+}
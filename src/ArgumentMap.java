@@ -206,12 +206,30 @@ public class ArgumentMap {
 
 	}
 	public int getThread(String flag, int defaultValue) {
+		return getInteger(flag, defaultValue);
+	}
+
+	/**
+	 * Returns the value to which the specified flag is mapped as an int, or the
+	 * default value if there is no mapping for the flag or it is not a number.
+	 *
+	 * @param flag         the flag whose associated value is to be returned
+	 * @param defaultValue the default value to return if there is no mapping for
+	 *                     the flag
+	 * @return the value to which the specified flag is mapped as an int, or the
+	 *         default value
+	 */
+	public int getInteger(String flag, int defaultValue) {
 		if (getString(flag) == null || !hasFlag(flag)) {
 			return defaultValue;
-		} else {
+		}
+		try {
 			return Integer.parseInt(this.map.get(flag));
+		} catch (NumberFormatException e) {
+			return defaultValue;
 		}
 	}
+
 	/**
 	 * Returns a toString value
 	 * 
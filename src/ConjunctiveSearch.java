@@ -0,0 +1,155 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Searches the postings of an index for the locations that contain every query
+ * word, or that contain the query words next to each other as a phrase. Only
+ * those locations are scored, instead of every location any query word was
+ * found at.
+ *
+ * The postings are intersected starting from the query word found at the
+ * fewest locations, as ordered by the {@link QueryPlan}, and each of the other
+ * postings skips ahead to the next candidate location with
+ * {@link TreeMap#ceilingKey(Object)} instead of being walked one location at a
+ * time.
+ */
+public class ConjunctiveSearch {
+
+	/**
+	 * Returns the first location at or after the given location that is in every
+	 * one of the postings, or null if there is none. Each postings in turn skips
+	 * ahead to the current candidate until they all agree on it.
+	 *
+	 * @param postings the postings to intersect, rarest first
+	 * @param location the location to start at
+	 * @return the next location in every postings
+	 */
+	private static String intersect(List<QueryPlan.Term> postings, String location) {
+		int agreed = 0;
+		int i = 0;
+		while (agreed < postings.size()) {
+			String next = postings.get(i).ceiling(location);
+			if (next == null) {
+				return null;
+			}
+			if (next.equals(location)) {
+				agreed++;
+			} else { // skips ahead and starts agreeing again
+				location = next;
+				agreed = 1;
+			}
+			i = (i + 1) % postings.size();
+		}
+		return location;
+	}
+
+	/**
+	 * Returns the smallest location that sorts after the given location.
+	 *
+	 * @param location the location we are done with
+	 * @return the location to continue searching from
+	 */
+	private static String after(String location) {
+		return location + '\0';
+	}
+
+	/**
+	 * Searches the index for the locations that contain every query word. The
+	 * count of each result is the total number of times the query words were found
+	 * at that location, just like the other searches.
+	 *
+	 * @param plan           the resolved plan of the query words
+	 * @param locationsIndex the number of words at each location
+	 * @return the sorted search results
+	 */
+	public static ArrayList<SearchResult> andSearch(QueryPlan plan, TreeMap<String, Integer> locationsIndex) {
+		if (plan.isEmpty() || !plan.missing().isEmpty()) { // no location can contain every word
+			return new ArrayList<>();
+		}
+		ArrayList<SearchResult> results = new ArrayList<>();
+		List<QueryPlan.Term> postings = plan.terms();
+
+		String location = intersect(postings, "");
+		int step = 0;
+		while (location != null && !plan.expired(++step)) {
+			int count = 0;
+			for (var term : postings) {
+				count += term.count(location);
+			}
+			SearchResult result = new SearchResult(location, locationsIndex.get(location));
+			result.updateResult(count);
+			results.add(result);
+
+			location = intersect(postings, after(location));
+		}
+		Collections.sort(results);
+		return results;
+	}
+
+	/**
+	 * Searches the index for the locations that contain the query words next to
+	 * each other in order. Phrase words should be matched exactly. The count of
+	 * each result is the number of times the whole phrase was found at that
+	 * location.
+	 *
+	 * @param plan           the resolved plan of the phrase words
+	 * @param locationsIndex the number of words at each location
+	 * @return the sorted search results
+	 */
+	public static ArrayList<SearchResult> phraseSearch(QueryPlan plan, TreeMap<String, Integer> locationsIndex) {
+		if (plan.isEmpty() || !plan.missing().isEmpty()) {
+			return new ArrayList<>();
+		}
+		ArrayList<SearchResult> results = new ArrayList<>();
+
+		String location = intersect(plan.terms(), "");
+		int step = 0;
+		while (location != null && !plan.expired(++step)) {
+			int count = phraseCount(plan.inOrder(), location);
+			if (count > 0) {
+				SearchResult result = new SearchResult(location, locationsIndex.get(location));
+				result.updateResult(count);
+				results.add(result);
+			}
+			location = intersect(plan.terms(), after(location));
+		}
+		Collections.sort(results);
+		return results;
+	}
+
+	/**
+	 * Counts the number of times the phrase starts at the location. Every position
+	 * of the phrase word found the fewest times at this location is checked
+	 * against the positions of the other words.
+	 *
+	 * @param postings the postings of the phrase words in order
+	 * @param location a location that contains every phrase word
+	 * @return the number of times the phrase was found
+	 */
+	private static int phraseCount(List<QueryPlan.Term> postings, String location) {
+		ArrayList<TreeSet<Integer>> positions = new ArrayList<>(postings.size());
+		int anchor = 0;
+		for (int i = 0; i < postings.size(); i++) {
+			positions.add(postings.get(i).positions(location));
+			if (positions.get(i).size() < positions.get(anchor).size()) {
+				anchor = i;
+			}
+		}
+
+		int count = 0;
+		for (int position : positions.get(anchor)) {
+			int start = position - anchor;
+			boolean found = true;
+			for (int i = 0; i < positions.size() && found; i++) {
+				found = i == anchor || positions.get(i).contains(start + i);
+			}
+			if (found) {
+				count++;
+			}
+		}
+		return count;
+	}
+}
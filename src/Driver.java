@@ -1,6 +1,7 @@
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -17,8 +18,13 @@ public class Driver {
 		InvertedIndex index = new InvertedIndex();
 		ThreadSafeInvertedIndex threadIndex = new ThreadSafeInvertedIndex();
 		QueryParser parser = new QueryParser(index);
-		MultiThreadedQueryParser threadParser = new MultiThreadedQueryParser(threadIndex);
+		SegmentedIndex segments = null;
+		SearchableIndex searchable;
+		ShardedIndex sharded = null;
+		SearchServer server = null;
+		MultiThreadedQueryParser threadParser;
 		final int threads;
+		final OutputFormat format;
 
 		if (args.length == 0) {
 			System.out.println("You did not enter any arguments");
@@ -26,71 +32,193 @@ public class Driver {
 
 		ArgumentMap map = new ArgumentMap();
 		map.parse(args);
-		if (map.hasFlag("-threads")) {
+		format = OutputFormat.fromFlags(map);
+		if (map.hasFlag("-metrics")) {
+			Metrics.enable();
+		}
+		if (map.hasFlag("-server") && System.getProperty("sun.net.httpserver.nodelay") == null) {
+			// set before the server classes load, or small responses wait on delayed acknowledgements
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+		}
+		if (map.hasFlag("-merge")) {
+			// merges the -ndjson indexes of several partial builds instead of building
+			ArrayList<Path> parts = new ArrayList<Path>();
+			String merge = map.getString("-merge");
+			for (var part : merge == null ? new String[0] : merge.split(",")) {
+				if (!part.isBlank()) {
+					parts.add(Paths.get(part.trim()));
+				}
+			}
+			if (parts.isEmpty()) { // merging nothing would overwrite the index with an empty one
+				System.out.println("There were no indexes to merge");
+				return;
+			}
+			try {
+				long start = Metrics.start();
+				var locations = IndexMerger.merge(parts, map.getPath("-index", Paths.get("index.json")), format);
+				Metrics.time("phase.merge.nanos", start);
+				if (map.hasFlag("-locations")) {
+					TreeJSONWriter.asObject(locations, map.getPath("-locations", Paths.get("locations.json")), format);
+				}
+			} catch (IOException e) {
+				System.out.println("Could not merge the indexes: " + e.getMessage());
+			}
+		} else if (map.hasFlag("-threads") || map.hasFlag("-server") || map.hasFlag("-shards")) {
 			threads = map.getThread("-threads", 5);
-			MultithreadedTextFileBuilder builder = new MultithreadedTextFileBuilder();
+			boolean live = map.hasFlag("-live") && map.hasFlag("-path") && map.getPath("-path") != null;
+			if (map.hasFlag("-shards")) { // searches the shard servers instead of building an index
+				sharded = ShardedIndex.fromPorts(map.getString("-shards"),
+						map.getInteger("-shardInflight", ShardedIndex.DEFAULT_INFLIGHT));
+				if (sharded.shards() == 0) {
+					System.out.println("There were no shard ports entered");
+				}
+				searchable = sharded;
+			} else if (map.hasFlag("-segments") || live) { // live searches need snapshots to stay consistent
+				segments = new SegmentedIndex(map.getInteger("-segments", SegmentedIndex.DEFAULT_FLUSH));
+				searchable = segments;
+			} else {
+				searchable = threadIndex;
+			}
+			threadParser = new MultiThreadedQueryParser(searchable);
+			threadParser.setDeadline(map.getInteger("-deadline", 0));
+			MultithreadedTextFileBuilder builder = live
+					? new MultithreadedTextFileBuilder(Integer.MAX_VALUE, map.getInteger("-refresh", 1000))
+					: new MultithreadedTextFileBuilder();
+			builder.setCapacity(map.getInteger("-capacity", MultithreadedTextFileBuilder.DEFAULT_CAPACITY));
+			int[] shard = shard(map);
+			builder.setShard(shard[0], shard[1]);
 
 			if (map.hasFlag("-path")) {
 				Path path = map.getPath("-path");
 
-				if (path != null) {
+				if (live) {
+					// searches below see the files committed at each refresh point
+					log.debug("Starting a live build");
+					SegmentedIndex target = segments;
+					builder.start(path, files -> {
+						target.addAll(files);
+						target.refresh();
+					}, threads);
+					if (map.hasFlag("-server")) {
+						// serves the files committed so far while the rest of this method finishes the build
+						server = serve(map, searchable, threads);
+					}
+				} else if (path != null) {
 					log.debug("Starting to call multithreadedTraverse");
-					threadIndex = builder.multithreadedTraverse(path, threadIndex, threads);
+					long start = Metrics.start();
+					if (segments != null) {
+						builder.start(path, segments::addAll, threads);
+						builder.finish();
+						segments.finish();
+					} else {
+						threadIndex = builder.multithreadedTraverse(path, threadIndex, threads);
+					}
+					Metrics.time("phase.build.nanos", start);
 					log.debug("We are out of MultithreadedTraverse");
-					log.debug("Size of the index after Traversing Directories : " + threadIndex.words());
+					log.debug("Size of the index after Traversing Directories : {}", threadIndex.words());
 				} else {
 					System.out.println("There was no path entered");
 				}
 			}
-			if (map.hasFlag("-index")) {
-				Path path = map.getPath("-index", Paths.get("index.json"));
-				try {
-					log.debug("Starting to call index.toJSON");
-					threadIndex.toJson(path);
-					log.debug("We are out of index.toJSON");
-				} catch (IOException e) {
-					System.out.println("Could not build index");
-				}
-			}
-
 			if (map.hasFlag("-search")) {
 				Path path = map.getPath("-search", Paths.get("results.json"));
+				if (map.hasFlag("-stream") && map.hasFlag("-results")) {
+					threadParser.streamResults(map.getPath("-results", Paths.get("results.json")), format);
+				}
 				try {
 					log.debug("Starting to call multithreadedParse");
-					threadParser.parse(path, map.hasFlag("-exact"), threads);
+					long start = Metrics.start();
+					threadParser.parse(path, map.hasFlag("-exact"), SearchMode.fromFlags(map), map.getInteger("-top", 0),
+							threads);
+					Metrics.time("phase.search.nanos", start);
 					log.debug("We are out of MultithreadedParse");
 				} catch (IOException e) {
 					System.out.println("Could not search the queries");
 				}
 
+				if (sharded != null && sharded.failure() != null) { // the results would be missing a shard
+					System.out.println("Could not search every shard: " + sharded.failure().getMessage());
+					System.exit(1);
+				}
+
 			}
 
-			if (map.hasFlag("-results")) {
+			if (live) {
+				long start = Metrics.start();
+				builder.finish();
+				segments.finish();
+				Metrics.time("phase.build.nanos", start);
+				log.debug("Live build finished at {}", segments);
+			}
+
+			if (map.hasFlag("-index")) {
+				Path path = map.getPath("-index", Paths.get("index.json"));
+				try {
+					log.debug("Starting to call index.toJSON");
+					long start = Metrics.start();
+					if (segments != null) {
+						segments.toJson(path, format);
+					} else {
+						threadIndex.toJson(path, threads, format);
+					}
+					Metrics.time("phase.index.nanos", start);
+					log.debug("We are out of index.toJSON");
+				} catch (IOException e) {
+					System.out.println("Could not build index");
+				}
+			}
+
+			if (map.hasFlag("-results") && !(map.hasFlag("-stream") && map.hasFlag("-search"))) {
 				Path filepath = map.getPath("-results", Paths.get("results.json"));
 				try {
 					log.debug("Starting to call Parser.JSON");
-					threadParser.toJson(filepath);
+					long start = Metrics.start();
+					threadParser.toJson(filepath, format);
+					Metrics.time("phase.results.nanos", start);
 					log.debug("We are out of Parser.JSON");
 				} catch (IOException e) {
 					System.out.println("Could not write the results");
 				}
 			}
 
+			if (map.hasFlag("-explain")) {
+				Path explainPath = map.getPath("-explain", Paths.get("explain.json"));
+				try {
+					threadParser.explainToJson(explainPath);
+				} catch (IOException e) {
+					System.out.println("Could not write the query plans");
+				}
+			}
+
 			if (map.hasFlag("-locations")) {
 				Path locationsPath = map.getPath("-locations", Paths.get("locations.json"));
 				try {
-					index.locationsToJson(locationsPath);
+					if (segments != null) {
+						segments.locationsToJson(locationsPath, format);
+					} else {
+						threadIndex.locationsToJson(locationsPath, format);
+					}
 				} catch (IOException e) {
 					System.out.println("Could not build the locations index");
 				}
 			}
 
+			if (segments != null) {
+				segments.close();
+			}
+
+			if (map.hasFlag("-server") && !live) {
+				server = serve(map, searchable, threads);
+			}
 		} else {
 			if (map.hasFlag("-path")) {
 				Path path = map.getPath("-path");
 				if (path != null) {
 					try {
-						TextFileBuilder.traverseDirectory(path, index);
+						long start = Metrics.start();
+						int[] shard = shard(map);
+						TextFileBuilder.traverseDirectory(path, index, shard[0], shard[1]);
+						Metrics.time("phase.build.nanos", start);
 					} catch (IOException e) {
 						System.out.println("Could not build from path: " + path);
 					}
@@ -102,7 +230,9 @@ public class Driver {
 			if (map.hasFlag("-index")) {
 				Path path = map.getPath("-index", Paths.get("index.json"));
 				try {
-					index.toJson(path);
+					long start = Metrics.start();
+					index.toJson(path, format);
+					Metrics.time("phase.index.nanos", start);
 				} catch (IOException e) {
 					System.out.println("Could not build index");
 				}
@@ -111,7 +241,9 @@ public class Driver {
 			if (map.hasFlag("-search")) {
 				Path path = map.getPath("-search", Paths.get("results.json"));
 				try {
-					parser.parse(path, map.hasFlag("-exact"));
+					long start = Metrics.start();
+					parser.parse(path, map.hasFlag("-exact"), SearchMode.fromFlags(map), map.getInteger("-top", 0));
+					Metrics.time("phase.search.nanos", start);
 				} catch (IOException e) {
 					System.out.println("Could not search the queries");
 				}
@@ -121,20 +253,104 @@ public class Driver {
 			if (map.hasFlag("-results")) {
 				Path filepath = map.getPath("-results", Paths.get("results.json"));
 				try {
-					parser.toJson(filepath);
+					long start = Metrics.start();
+					parser.toJson(filepath, format);
+					Metrics.time("phase.results.nanos", start);
 				} catch (IOException e) {
 					System.out.println("Could not write the results");
 				}
 			}
 
+			if (map.hasFlag("-explain")) {
+				Path explainPath = map.getPath("-explain", Paths.get("explain.json"));
+				try {
+					parser.explainToJson(explainPath);
+				} catch (IOException e) {
+					System.out.println("Could not write the query plans");
+				}
+			}
+
 			if (map.hasFlag("-locations")) {
 				Path locationsPath = map.getPath("-locations", Paths.get("locations.json"));
 				try {
-					index.locationsToJson(locationsPath);
+					index.locationsToJson(locationsPath, format);
 				} catch (IOException e) {
 					System.out.println("Could not build the locations index");
 				}
 			}
 		}
+
+		if (server == null) { // a server writes them once it stops
+			writeMetrics(map);
+		}
+	}
+
+	/**
+	 * Starts serving searches of the index in the background. When the JVM shuts
+	 * down, the server is stopped and the metrics are written, so they include
+	 * every request that was served.
+	 *
+	 * @param map        the parsed command-line arguments
+	 * @param searchable the index to search
+	 * @param threads    the number of requests to handle at once
+	 * @return the server, or null if it could not be started
+	 */
+	private static SearchServer serve(ArgumentMap map, SearchableIndex searchable, int threads) {
+		SearchServer server = new SearchServer(searchable, threads, map.getInteger("-inflight", threads * 2));
+		server.setDeadline(map.getInteger("-deadline", 0));
+		try {
+			server.start(map.getInteger("-server", SearchServer.DEFAULT_PORT));
+		} catch (IOException e) {
+			System.out.println("Could not start the server");
+			server.stop();
+			return null;
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			server.stop();
+			writeMetrics(map);
+		}));
+		return server;
+	}
+
+	/**
+	 * Writes the metrics to the {@code -metrics} file, if there is one.
+	 *
+	 * @param map the parsed command-line arguments
+	 */
+	private static void writeMetrics(ArgumentMap map) {
+		if (map.hasFlag("-metrics")) {
+			Path metricsPath = map.getPath("-metrics", Paths.get("metrics.json"));
+			try {
+				Metrics.toJson(metricsPath);
+			} catch (IOException e) {
+				System.out.println("Could not write the metrics");
+			}
+		}
+	}
+
+	/**
+	 * Parses the {@code -shard I/N} flag of a partial build.
+	 *
+	 * @param map the parsed command-line arguments
+	 * @return the shard to build and the number of shards, or every file if there
+	 *         is no shard; exits if the shard is not valid, since building every
+	 *         file would silently overlap the other shards
+	 */
+	private static int[] shard(ArgumentMap map) {
+		if (!map.hasFlag("-shard")) {
+			return new int[] { 0, 1 };
+		}
+		try {
+			String[] shard = map.getString("-shard", "0/1").split("/");
+			int[] parsed = { Integer.parseInt(shard[0]), Integer.parseInt(shard[1]) };
+			if (parsed[1] > 0 && parsed[0] >= 0 && parsed[0] < parsed[1]) {
+				return parsed;
+			}
+		} catch (NumberFormatException | NullPointerException | ArrayIndexOutOfBoundsException e) {
+			log.debug("Bad shard {}", map.getString("-shard"), e);
+		}
+		System.out.println("The shard should look like 0/3, not " + map.getString("-shard"));
+		System.exit(1);
+		return null;
 	}
 }
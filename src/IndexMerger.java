@@ -0,0 +1,223 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Merges indexes that were built from separate parts of the same files, such as
+ * by several processes started with {@code -shard I/N}, into the one index a
+ * single process would have built from all of the files.
+ *
+ * Every part is read from the file written by {@code -index} with
+ * {@code -ndjson}, compressed with gzip or not. It has one line for every word
+ * in sorted order, so the parts are merged with a k-way merge that only keeps
+ * the current word of each part in memory, and the postings of a word found in
+ * several parts are put together before the word is written. The merged index
+ * can be written in any output format.
+ *
+ * The total number of words at each location is the number of positions it has
+ * across every word, so the locations are counted while merging instead of being
+ * saved with each part.
+ */
+public class IndexMerger {
+	public static final Logger log = LogManager.getLogger(Driver.class);
+
+	/**
+	 * Merges the parts into one index.
+	 *
+	 * @param parts  the saved index of every part
+	 * @param path   where to write the merged index
+	 * @param format the output format of the merged index
+	 * @return the total number of words at every location of the merged index
+	 * @throws IOException if unable to read a part or write the merged index
+	 */
+	public static TreeMap<String, Integer> merge(List<Path> parts, Path path, OutputFormat format)
+			throws IOException {
+		TreeMap<String, Integer> locations = new TreeMap<String, Integer>();
+		PriorityQueue<Part> queue = new PriorityQueue<Part>(
+				Comparator.comparing((Part part) -> part.word).thenComparingInt(part -> part.id));
+		ArrayList<Part> opened = new ArrayList<Part>();
+
+		try (BufferedWriter writer = format.newWriter(path)) {
+			for (var file : parts) {
+				Part part = new Part(file, opened.size());
+				opened.add(part);
+				if (part.next()) {
+					queue.add(part);
+				}
+			}
+
+			if (!format.isNdjson()) {
+				writer.write('{');
+				writer.write(System.lineSeparator());
+			}
+
+			int words = 0;
+			while (!queue.isEmpty()) {
+				Part part = queue.poll();
+				String word = part.word;
+				TreeMap<String, TreeSet<Integer>> postings = part.postings;
+				advance(part, queue);
+
+				while (!queue.isEmpty() && queue.peek().word.equals(word)) {
+					Part other = queue.poll();
+					for (var entry : other.postings.entrySet()) {
+						postings.merge(entry.getKey(), entry.getValue(), (a, b) -> {
+							a.addAll(b);
+							return a;
+						});
+					}
+					advance(other, queue);
+				}
+
+				for (var entry : postings.entrySet()) {
+					locations.merge(entry.getKey(), entry.getValue().size(), Integer::sum);
+				}
+				if (format.isNdjson()) {
+					TreeJSONWriter.writeNdjsonWord(word, postings, writer);
+				} else {
+					TreeJSONWriter.writeWord(word, postings, words == 0, writer, 0);
+				}
+				words++;
+			}
+
+			if (!format.isNdjson()) {
+				if (words > 0) {
+					writer.write(System.lineSeparator());
+				}
+				writer.write("}");
+			}
+			Metrics.add("merge.words", words);
+			log.debug("Merged {} words at {} locations from {} parts", words, locations.size(), parts.size());
+		} finally {
+			for (var part : opened) {
+				part.close();
+			}
+		}
+		return locations;
+	}
+
+	/**
+	 * Moves a part on to its next word, putting it back in the queue unless it has
+	 * no more words.
+	 *
+	 * @param part  the part to move on
+	 * @param queue the parts that still have words
+	 * @throws IOException if unable to read the part
+	 */
+	private static void advance(Part part, PriorityQueue<Part> queue) throws IOException {
+		if (part.next()) {
+			queue.add(part);
+		}
+	}
+
+	/**
+	 * Opens a file for reading, uncompressing it if it starts like a gzip file.
+	 *
+	 * @param path the file to read
+	 * @return the reader to use
+	 * @throws IOException if unable to open the file
+	 */
+	private static BufferedReader newReader(Path path) throws IOException {
+		InputStream input = new BufferedInputStream(Files.newInputStream(path));
+		input.mark(2);
+		boolean gzip = input.read() == 0x1f && input.read() == 0x8b;
+		input.reset();
+		if (gzip) {
+			input = new GZIPInputStream(input, 1 << 16);
+		}
+		return new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * The saved index of a single part, read one word at a time.
+	 */
+	private static class Part implements Closeable {
+		private final Path path;
+		private final int id;
+		private final BufferedReader reader;
+		private String word;
+		private TreeMap<String, TreeSet<Integer>> postings;
+
+		/**
+		 * Opens the part.
+		 *
+		 * @param path the saved index of the part
+		 * @param id   the order of the part, to break ties between parts
+		 * @throws IOException if unable to open the part
+		 */
+		public Part(Path path, int id) throws IOException {
+			this.path = path;
+			this.id = id;
+			this.reader = newReader(path);
+		}
+
+		/**
+		 * Reads the next word and its postings.
+		 *
+		 * @return true if there was another word
+		 * @throws IOException if unable to read the part, or if it is not an index
+		 *                     written with {@code -ndjson}
+		 */
+		public boolean next() throws IOException {
+			String line = reader.readLine();
+			while (line != null && line.isEmpty()) {
+				line = reader.readLine();
+			}
+			if (line == null) {
+				return false;
+			}
+
+			String start = "{\"word\":\"";
+			int end = line.indexOf("\",\"postings\":{", start.length());
+			if (!line.startsWith(start) || end < 0) {
+				throw new IOException(path + " is not an index written with -ndjson");
+			}
+
+			String next = line.substring(start.length(), end);
+			if (word != null && next.compareTo(word) <= 0) {
+				throw new IOException(path + " is not sorted at " + next);
+			}
+			word = next;
+			postings = new TreeMap<String, TreeSet<Integer>>();
+
+			try {
+				int i = end + "\",\"postings\":{".length();
+				while (line.charAt(i) == '"') {
+					int location = line.indexOf("\":[", i + 1);
+					int close = line.indexOf(']', location);
+					TreeSet<Integer> positions = new TreeSet<Integer>();
+					for (var position : line.substring(location + 3, close).split(",")) {
+						positions.add(Integer.parseInt(position));
+					}
+					postings.put(line.substring(i + 1, location), positions);
+					i = line.charAt(close + 1) == ',' ? close + 2 : close + 1;
+				}
+			} catch (IndexOutOfBoundsException | NumberFormatException e) {
+				throw new IOException(path + " has a broken record for " + word, e);
+			}
+			return true;
+		}
+
+		@Override
+		public void close() throws IOException {
+			reader.close();
+		}
+	}
+}
@@ -1,8 +1,12 @@
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
 
@@ -17,6 +21,13 @@ public class InvertedIndex {
 	private final TreeMap<String, TreeMap<String, TreeSet<Integer>>> index;
 	private final TreeMap<String, Integer> locationsIndex;
 
+	/**
+	 * Stores the highest score each word can add to a search result, or null if
+	 * the index changed since they were calculated. Volatile so an index that is
+	 * no longer changed can be searched by several threads at once.
+	 */
+	private volatile HashMap<String, Double> bounds;
+
 	/**
 	 * Initializes the index.
 	 */
@@ -41,6 +52,7 @@ public class InvertedIndex {
 	 * @return true if this index did not already contain this word and position
 	 */
 	public boolean add(String word, int position, String location) {
+		this.bounds = null;
 		this.index.putIfAbsent(word, new TreeMap<>());
 		this.index.get(word).putIfAbsent(location, new TreeSet<>());
 
@@ -59,6 +71,16 @@ public class InvertedIndex {
 		TreeJSONWriter.asObject(this.locationsIndex, path);
 	}
 
+	/**
+	 * sends the locations to TreeJSONWriter to get written in the given format
+	 *
+	 * @param path   the path to write the file to
+	 * @param format the output format to use
+	 */
+	public void locationsToJson(Path path, OutputFormat format) throws IOException {
+		TreeJSONWriter.asObject(this.locationsIndex, path, format);
+	}
+
 	/**
 	 * Adds the array of words at once, assuming the first word in the array is at
 	 * position 1.
@@ -96,6 +118,117 @@ public class InvertedIndex {
 		return returning;
 	}
 
+	/**
+	 * Adds every word and location of another index to this one.
+	 *
+	 * @param other the index to add
+	 *
+	 * @see #addTo(TreeMap, TreeMap)
+	 */
+	public void addAll(InvertedIndex other) {
+		addAll(other, List.of());
+	}
+
+	/**
+	 * Adds every word and location of another index to this one, except for the
+	 * skipped locations.
+	 *
+	 * @param other the index to add
+	 * @param skip  the locations to leave out
+	 *
+	 * @see #addTo(TreeMap, TreeMap, Collection)
+	 */
+	public void addAll(InvertedIndex other, Collection<String> skip) {
+		this.bounds = null;
+		other.addTo(this.index, this.locationsIndex, skip);
+	}
+
+	/**
+	 * Adds every word and location of this index to the maps of another index. The
+	 * positions are copied, so neither index shares anything with the other
+	 * afterwards.
+	 *
+	 * @param index          the words of the other index
+	 * @param locationsIndex the word counts of the other index
+	 */
+	public void addTo(TreeMap<String, TreeMap<String, TreeSet<Integer>>> index,
+			TreeMap<String, Integer> locationsIndex) {
+		addTo(index, locationsIndex, List.of());
+	}
+
+	/**
+	 * Adds every word and location of this index to the maps of another index,
+	 * except for the skipped locations.
+	 *
+	 * @param index          the words of the other index
+	 * @param locationsIndex the word counts of the other index
+	 * @param skip           the locations to leave out
+	 */
+	public void addTo(TreeMap<String, TreeMap<String, TreeSet<Integer>>> index,
+			TreeMap<String, Integer> locationsIndex, Collection<String> skip) {
+		for (var word : this.index.entrySet()) {
+			TreeMap<String, TreeSet<Integer>> posting = null;
+			for (var location : word.getValue().entrySet()) {
+				if (!skip.isEmpty() && skip.contains(location.getKey())) {
+					continue;
+				}
+				if (posting == null) {
+					posting = index.computeIfAbsent(word.getKey(), w -> new TreeMap<>());
+				}
+				var positions = posting.get(location.getKey());
+				if (positions == null) {
+					posting.put(location.getKey(), new TreeSet<>(location.getValue()));
+				} else {
+					positions.addAll(location.getValue());
+				}
+			}
+		}
+		for (var location : this.locationsIndex.entrySet()) {
+			if (!skip.isEmpty() && skip.contains(location.getKey())) {
+				continue;
+			}
+			locationsIndex.merge(location.getKey(), location.getValue(), Integer::sum);
+		}
+	}
+
+	/**
+	 * Removes a location and every word found there.
+	 *
+	 * @param location the location to remove
+	 * @return true if the location was in the index
+	 */
+	public boolean remove(String location) {
+		if (this.locationsIndex.remove(location) == null) {
+			return false;
+		}
+		this.bounds = null;
+		Iterator<TreeMap<String, TreeSet<Integer>>> postings = this.index.values().iterator();
+		while (postings.hasNext()) {
+			var posting = postings.next();
+			if (posting.remove(location) != null && posting.isEmpty()) {
+				postings.remove();
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the number of words found at a location.
+	 *
+	 * @param location the location to look for
+	 * @return the number of words, or 0 if the location is not in the index
+	 */
+	public int wordCount(String location) {
+		return this.locationsIndex.getOrDefault(location, 0);
+	}
+
+	/**
+	 * @return the locations in the index
+	 */
+	public Set<String> getLocations() {
+		return Collections.unmodifiableSet(this.locationsIndex.keySet());
+	}
+
 	/**
 	 * Returns the number of locations this word appears in
 	 *
@@ -174,6 +307,17 @@ public class InvertedIndex {
 		TreeJSONWriter.asNestedObject(this.index, path);
 	}
 
+	/**
+	 * Passes the index to TreeJSONWriter so that it can write the index in the
+	 * given format
+	 *
+	 * @param path   where to write the file at
+	 * @param format the output format to use
+	 */
+	public void toJson(Path path, OutputFormat format) throws IOException {
+		TreeJSONWriter.asNestedObject(this.index, path, format);
+	}
+
 	/**
 	 * Returns a string representation of this index.
 	 */
@@ -187,26 +331,13 @@ public class InvertedIndex {
 	 * InvertedIndex
 	 *
 	 * @param queries word to look for
-	 * @param result  where we store results
+	 * @return the sorted search results
 	 */
 	public ArrayList<SearchResult> exactSearch(TreeSet<String> queries) {
-
-		HashMap<String, SearchResult> lookup = new HashMap<String, SearchResult>();
-		ArrayList<SearchResult> results = new ArrayList<>();
-
 		if (queries.size() < 1) {
 			return null;
 		}
-
-		for (var key : queries) { // look at all the words in the query
-
-			if (this.index.containsKey(key)) { // see if the index contains the specific word we are looking for word
-				searchHelper(key, lookup, results);
-
-			}
-		}
-		Collections.sort(results);
-		return results;
+		return search(new QueryPlan(queries, true));
 	}
 
 	/**
@@ -214,45 +345,107 @@ public class InvertedIndex {
 	 * starts with query
 	 *
 	 * @param queries word to look for
-	 * @param result  where we store results
+	 * @return the sorted search results
 	 */
 	public ArrayList<SearchResult> partialSearch(TreeSet<String> queries) {
-		HashMap<String, SearchResult> lookup = new HashMap<String, SearchResult>();
-		ArrayList<SearchResult> results = new ArrayList<>();
-
 		if (queries.size() < 1) {
 			return null;
 		}
+		return search(new QueryPlan(queries, false));
+	}
 
-		for (var word : queries.descendingSet()) {
+	/**
+	 * Does an exact or partial search on the Index, looking at the query words
+	 * found at the fewest locations first and skipping words that are not in the
+	 * index.
+	 *
+	 * @param plan the plan of the words to look for
+	 * @return the sorted search results
+	 */
+	public ArrayList<SearchResult> search(QueryPlan plan) {
+		plan.resolve(this.index);
+		if (plan.isEmpty()) {
+			return new ArrayList<>();
+		}
 
-			var keySet = this.index.navigableKeySet();
-			for (var keyword : keySet.tailSet(word)) {
+		HashMap<String, SearchResult> lookup = new HashMap<String, SearchResult>();
+		ArrayList<SearchResult> results = new ArrayList<>();
 
-				if (keyword.startsWith(word)) { // checks to see if the word inside the InvertedIndex starts with the
-												// query word
-					searchHelper(keyword, lookup, results);
-				} else {
+		int visited = 0;
+		for (var term : plan.terms()) {
+			for (var posting : term.getPostings()) {
+				visited = searchHelper(posting, lookup, results, plan, visited);
+				if (plan.isPartial()) {
 					break;
 				}
 			}
 		}
+		plan.visit(visited);
 		Collections.sort(results);
 		return results;
 	}
 
+	/**
+	 * Does an and search on the Index, only keeping the locations that contain
+	 * every one of the query words
+	 *
+	 * @param plan the plan of the words to look for
+	 * @return the sorted search results
+	 */
+	public ArrayList<SearchResult> andSearch(QueryPlan plan) {
+		return ConjunctiveSearch.andSearch(plan.resolve(this.index), this.locationsIndex);
+	}
+
+	/**
+	 * Does a phrase search on the Index, only keeping the locations that contain
+	 * the query words next to each other in order
+	 *
+	 * @param plan the plan of the exact words to look for in order
+	 * @return the sorted search results
+	 */
+	public ArrayList<SearchResult> phraseSearch(QueryPlan plan) {
+		return ConjunctiveSearch.phraseSearch(plan.resolve(this.index), this.locationsIndex);
+	}
+
+	/**
+	 * Does an exact or partial search on the Index, only keeping the best results.
+	 * The highest score of every word is calculated on the first search after the
+	 * index is built.
+	 *
+	 * @param plan the plan of the words to look for
+	 * @param top  the number of results to keep
+	 * @return the sorted best search results
+	 */
+	public ArrayList<SearchResult> topSearch(QueryPlan plan, int top) {
+		if (this.bounds == null) {
+			this.bounds = TopKSearch.bounds(this.index, this.locationsIndex);
+		}
+		return TopKSearch.search(plan.resolve(this.index), this.locationsIndex, this.bounds, top);
+	}
+
 	/**
 	 * is useful for having the shared code of partialSearch and ExactSearch, does
 	 * the actual search on the index
 	 *
-	 * @param keyword  the word we are searching for
-	 * @param location the location we are searching at
-	 * @param lookup   the Hashmap too lookup everything
+	 * @param posting the locations and positions of the word we are searching for
+	 * @param lookup  the Hashmap too lookup everything
+	 * @param results where we store results
+	 * @param plan    the plan whose deadline to check
+	 * @param step    the number of locations already searched for the plan,
+	 *                carried over between postings so many small postings still
+	 *                reach a deadline check
+	 * @return the number of locations searched so far, including the ones in this
+	 *         posting searched before the deadline passed
 	 */
-	private void searchHelper(String keyword, HashMap<String, SearchResult> lookup, ArrayList<SearchResult> results) {
+	private int searchHelper(TreeMap<String, TreeSet<Integer>> posting, HashMap<String, SearchResult> lookup,
+			ArrayList<SearchResult> results, QueryPlan plan, int step) {
 
-		for (var location : this.index.get(keyword).keySet()) {
-			int count = this.index.get(keyword).get(location).size();
+		for (var entry : posting.entrySet()) {
+			if (plan.expired(++step)) {
+				return step - 1;
+			}
+			String location = entry.getKey();
+			int count = entry.getValue().size();
 			int locationCount = locationsIndex.get(location);
 
 			if (lookup.containsKey(location)) { // checks to see if we already have that location
@@ -265,6 +458,6 @@ public class InvertedIndex {
 
 			}
 		}
-
+		return step;
 	}
 }
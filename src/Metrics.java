@@ -0,0 +1,306 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Keeps counters and histograms of what the search engine is doing, such as
+ * the files and words indexed, how long threads wait for locks, how deep the
+ * work queues get and how long each query takes. Metrics are only recorded
+ * after {@link #enable()} is called, so they cost a single volatile read when
+ * they are off.
+ *
+ * Every metric is looked up by name, and timing metrics end in {@code .nanos}.
+ * The metrics are exposed over JMX and can be written as JSON with the
+ * {@code -metrics} flag.
+ */
+public class Metrics implements MetricsMXBean {
+	public static final Logger log = LogManager.getLogger(Driver.class);
+
+	/** The JMX name the metrics are registered under. */
+	public static final String NAME = "SearchEngine:type=Metrics";
+
+	/** Whether metrics are being recorded. */
+	private static volatile boolean enabled = false;
+
+	private static final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+	private static final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+	/**
+	 * Starts recording metrics and registers them with the platform MBean server.
+	 */
+	public static synchronized void enable() {
+		if (enabled) {
+			return;
+		}
+		enabled = true;
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new Metrics(), new ObjectName(NAME));
+		} catch (JMException e) {
+			log.debug("Could not register the metrics with JMX", e);
+		}
+	}
+
+	/**
+	 * @return whether metrics are being recorded
+	 */
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Adds one to a counter.
+	 *
+	 * @param name the name of the counter
+	 */
+	public static void increment(String name) {
+		add(name, 1);
+	}
+
+	/**
+	 * Adds to a counter.
+	 *
+	 * @param name   the name of the counter
+	 * @param amount the amount to add
+	 */
+	public static void add(String name, long amount) {
+		if (enabled) {
+			counters.computeIfAbsent(name, n -> new LongAdder()).add(amount);
+		}
+	}
+
+	/**
+	 * Records a value in a histogram.
+	 *
+	 * @param name  the name of the histogram
+	 * @param value the value to record, which should not be negative
+	 */
+	public static void record(String name, long value) {
+		if (enabled) {
+			histograms.computeIfAbsent(name, n -> new Histogram()).record(value);
+		}
+	}
+
+	/**
+	 * Records the time since start in a histogram.
+	 *
+	 * @param name  the name of the histogram, which should end in {@code .nanos}
+	 * @param start the start time from {@link System#nanoTime()}
+	 */
+	public static void time(String name, long start) {
+		if (enabled) {
+			record(name, System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Records a finished query: how long it took and how many postings it visited.
+	 *
+	 * @param plan  the plan of the query after searching
+	 * @param start the start time of the query from {@link #start()}
+	 */
+	public static void query(QueryPlan plan, long start) {
+		if (enabled) {
+			increment("query.searched");
+			if (plan.isPartial()) {
+				increment("query.partial");
+			}
+			record("query.visited", plan.getVisited());
+			time("query.nanos", start);
+		}
+	}
+
+	/**
+	 * Returns the current time if metrics are being recorded, so code being timed
+	 * does not call {@link System#nanoTime()} for nothing.
+	 *
+	 * @return the current time from {@link System#nanoTime()}, or 0
+	 */
+	public static long start() {
+		return enabled ? System.nanoTime() : 0;
+	}
+
+	/**
+	 * A histogram of values in buckets that double in size, so it uses a fixed
+	 * amount of memory no matter how many values are recorded. Percentiles are
+	 * the upper end of the bucket they fall in, so they are never off by more
+	 * than a factor of two.
+	 */
+	private static class Histogram {
+		private final AtomicLongArray buckets = new AtomicLongArray(64);
+		private final LongAdder count = new LongAdder();
+		private final LongAdder sum = new LongAdder();
+		private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+		public void record(long value) {
+			value = Math.max(0, value);
+			buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+			count.increment();
+			sum.add(value);
+			max.accumulate(value);
+		}
+
+		/**
+		 * @param percent the percentile
+		 * @return the upper end of the bucket the percentile falls in
+		 */
+		public long percentile(double percent) {
+			long rank = (long) Math.ceil(percent / 100 * count.sum());
+			long seen = 0;
+			for (int i = 0; i < buckets.length(); i++) {
+				seen += buckets.get(i);
+				if (seen >= rank && seen > 0) {
+					return Math.min(upper(i), max.get());
+				}
+			}
+			return max.get();
+		}
+
+		/**
+		 * @param bucket the index of a bucket
+		 * @return the largest value that falls in the bucket
+		 */
+		private static long upper(int bucket) {
+			return bucket == 0 ? 0 : bucket >= 63 ? Long.MAX_VALUE : (1L << bucket) - 1;
+		}
+
+		/**
+		 * @return the summary of the histogram, in the order it is written
+		 */
+		public TreeMap<String, Long> summary() {
+			TreeMap<String, Long> summary = new TreeMap<String, Long>();
+			summary.put("count", count.sum());
+			summary.put("sum", sum.sum());
+			summary.put("max", max.get());
+			summary.put("p50", percentile(50));
+			summary.put("p90", percentile(90));
+			summary.put("p99", percentile(99));
+			return summary;
+		}
+	}
+
+	@Override
+	public Map<String, Long> getCounters() {
+		TreeMap<String, Long> values = new TreeMap<String, Long>();
+		counters.forEach((name, counter) -> values.put(name, counter.sum()));
+		return values;
+	}
+
+	@Override
+	public Map<String, Long> getHistograms() {
+		TreeMap<String, Long> values = new TreeMap<String, Long>();
+		histograms.forEach((name, histogram) -> {
+			histogram.summary().forEach((value, number) -> values.put(name + "." + value, number));
+		});
+		return values;
+	}
+
+	@Override
+	public void reset() {
+		counters.clear();
+		histograms.clear();
+	}
+
+	/**
+	 * Writes every counter and histogram as JSON, with the buckets of each
+	 * histogram by the largest value that falls in them.
+	 *
+	 * @param path the file to write to
+	 * @throws IOException if the file cannot be written
+	 */
+	public static void toJson(Path path) throws IOException {
+		TreeMap<String, Long> counterValues = new TreeMap<String, Long>();
+		counters.forEach((name, counter) -> counterValues.put(name, counter.sum()));
+
+		try (BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+			writer.write("{");
+			writer.write(System.lineSeparator());
+			TreeJSONWriter.indent(1, writer);
+			TreeJSONWriter.quote("counters", writer);
+			writer.write(": ");
+			asObject(counterValues, writer, 1);
+			writer.write(",");
+			writer.write(System.lineSeparator());
+
+			TreeJSONWriter.indent(1, writer);
+			TreeJSONWriter.quote("histograms", writer);
+			writer.write(": {");
+			Iterator<Map.Entry<String, Histogram>> iterator = new TreeMap<>(histograms).entrySet().iterator();
+			while (iterator.hasNext()) {
+				var entry = iterator.next();
+				Histogram histogram = entry.getValue();
+				writer.write(System.lineSeparator());
+				TreeJSONWriter.indent(2, writer);
+				TreeJSONWriter.quote(entry.getKey(), writer);
+				writer.write(": {");
+				for (var value : histogram.summary().entrySet()) {
+					writer.write(System.lineSeparator());
+					TreeJSONWriter.indent(3, writer);
+					TreeJSONWriter.quote(value.getKey(), writer);
+					writer.write(": " + value.getValue() + ",");
+				}
+
+				TreeMap<String, Long> buckets = new TreeMap<String, Long>(
+						(a, b) -> Long.compare(Long.parseLong(a), Long.parseLong(b)));
+				for (int i = 0; i < histogram.buckets.length(); i++) {
+					if (histogram.buckets.get(i) > 0) {
+						buckets.put(Long.toString(Histogram.upper(i)), histogram.buckets.get(i));
+					}
+				}
+				writer.write(System.lineSeparator());
+				TreeJSONWriter.indent(3, writer);
+				TreeJSONWriter.quote("buckets", writer);
+				writer.write(": ");
+				asObject(buckets, writer, 3);
+				writer.write(System.lineSeparator());
+				TreeJSONWriter.indent(2, writer);
+				writer.write(iterator.hasNext() ? "}," : "}");
+			}
+			writer.write(System.lineSeparator());
+			TreeJSONWriter.indent(1, writer);
+			writer.write("}");
+			writer.write(System.lineSeparator());
+			writer.write("}");
+			writer.write(System.lineSeparator());
+		}
+	}
+
+	/**
+	 * Writes named numbers as a pretty JSON object at the given indent level.
+	 *
+	 * @param elements the numbers to write
+	 * @param writer   the writer to use
+	 * @param level    the indent level of the object
+	 * @throws IOException if the writer encounters any issues
+	 */
+	private static void asObject(TreeMap<String, Long> elements, BufferedWriter writer, int level)
+			throws IOException {
+		writer.write("{");
+		Iterator<Map.Entry<String, Long>> iterator = elements.entrySet().iterator();
+		while (iterator.hasNext()) {
+			var entry = iterator.next();
+			writer.write(System.lineSeparator());
+			TreeJSONWriter.indent(level + 1, writer);
+			TreeJSONWriter.quote(entry.getKey(), writer);
+			writer.write(": " + entry.getValue() + (iterator.hasNext() ? "," : ""));
+		}
+		writer.write(System.lineSeparator());
+		TreeJSONWriter.indent(level, writer);
+		writer.write("}");
+	}
+}
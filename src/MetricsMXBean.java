@@ -0,0 +1,26 @@
+import java.util.Map;
+
+/**
+ * The metrics of the search engine as seen over JMX, for example in JConsole
+ * under the {@value Metrics#NAME} bean.
+ *
+ * @see Metrics
+ */
+public interface MetricsMXBean {
+
+	/**
+	 * @return the value of every counter by name
+	 */
+	Map<String, Long> getCounters();
+
+	/**
+	 * @return the count, sum, max and percentiles of every histogram, by the name
+	 *         of the histogram followed by the name of the value
+	 */
+	Map<String, Long> getHistograms();
+
+	/**
+	 * Sets every counter and histogram back to zero.
+	 */
+	void reset();
+}
@@ -1,11 +1,19 @@
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -15,26 +23,48 @@ import opennlp.tools.stemmer.snowball.SnowballStemmer;
 public class MultiThreadedQueryParser {
 
 	private final TreeMap<String, ArrayList<SearchResult>> results;
+	private final TreeMap<String, QueryPlan> plans;
 	private final ArrayList<TreeSet<String>> allQueries = new ArrayList<>();
-	private final ThreadSafeInvertedIndex threadIndex;
+	private final ArrayList<ArrayList<String>> allPhrases = new ArrayList<>();
+	private final SearchableIndex threadIndex;
+
+	/** The view of the index every search of the current batch uses. */
+	private SearchableIndex pinned;
+
+	/** How long each query may search in nanoseconds, or 0 for no limit. */
+	private long deadline = 0;
+	private final AtomicInteger partial = new AtomicInteger();
+
+	/** The first search of the batch that failed, such as one sent to a shard that is down. */
+	private volatile UncheckedIOException failure;
+
+	/** Marks a query of the batch search whose words are not being counted yet. */
+	private static final long NOT_STARTED = Long.MIN_VALUE;
 	public static final Logger log = LogManager.getLogger(Driver.class);
+
+	/** How many queries per thread can wait to be written when streaming. */
+	public static final int STREAM_WINDOW = 4;
 	private WorkQueue minions;
+	private Path streamPath;
+	private OutputFormat streamFormat;
+	private OrderedResultWriter stream;
 
 	/**
 	 * Constructor for QueryParser, initializes the index as the InvertedIndex
 	 *
-	 * @param index the InvertedIndex we will use
+	 * @param index the index we will search
 	 */
-	MultiThreadedQueryParser(ThreadSafeInvertedIndex index) {
+	MultiThreadedQueryParser(SearchableIndex index) {
 		this.threadIndex = index;
 		results = new TreeMap<String, ArrayList<SearchResult>>();
+		plans = new TreeMap<String, QueryPlan>();
 
 	}
 
 	/**
 	 * Reads a file line by line, and searches for the words given in the file.
-	 * calls partialSearchMinion or exactsearchMinion based on the boolean condition
-	 * exact this function will start up threads
+	 * searches the whole batch at once with partial or exact search based on the
+	 * boolean condition exact this function will start up threads
 	 *
 	 * @param inputFile the input file to parse
 	 * @param exact     boolean condition used to call partialSearch/exactSearch
@@ -42,6 +72,26 @@ public class MultiThreadedQueryParser {
 	 *
 	 */
 	public void parse(Path inputFile, boolean exact, int threads) throws IOException {
+		parse(inputFile, exact, SearchMode.OR, 0, threads);
+	}
+
+	/**
+	 * Reads a file line by line, and searches for the words given in the file.
+	 * and, phrase and top queries are each searched by their own minion, otherwise
+	 * the whole batch is searched at once based on the boolean condition exact
+	 *
+	 * @param inputFile the input file to parse
+	 * @param exact     boolean condition used to call partialSearch/exactSearch
+	 * @param mode      how the words of each query are combined
+	 * @param top       the number of results to keep for each query, or 0 to keep
+	 *                  every result
+	 * @param threads   the number of threads to use
+	 * @throws IOException if unable to read or write to file, or if a search
+	 *                     failed, in which case the streamed results stop at the
+	 *                     failed query
+	 *
+	 */
+	public void parse(Path inputFile, boolean exact, SearchMode mode, int top, int threads) throws IOException {
 
 		SnowballStemmer stemmer = new SnowballStemmer(SnowballStemmer.ALGORITHM.ENGLISH);
 
@@ -49,52 +99,473 @@ public class MultiThreadedQueryParser {
 			String line = reader.readLine();
 
 			while (line != null) {
-				TreeSet<String> queries = new TreeSet<String>();
-				String[] lineList = TextParser.parse(line);
-
-				for (var lines: lineList) {
-					String stemmedQuery = stemmer.stem(lines.toString()).toString();
-					if (!queries.contains(stemmedQuery)) {
-						queries.add(stemmedQuery);
+				Collection<String> words = stem(line, mode, stemmer);
+				if (mode == SearchMode.PHRASE) {
+					if (!allPhrases.contains(words)) {
+						allPhrases.add(new ArrayList<String>(words));
 					}
-				}
-				if (!allQueries.contains(queries)) {
-					allQueries.add(queries);
+				} else if (!allQueries.contains(words)) {
+					allQueries.add(new TreeSet<String>(words));
 				}
 
 				line = reader.readLine();
 			}
-			if (exact) {
-				minions = new WorkQueue(threads);
-				log.debug("There are " + allQueries.size() + " queries");
-				// System.out.println("There are " + allQueries.size() + " queries");
-				for (var queries : allQueries) {
-					log.debug("Sending in: " + queries.toString());
-					// System.out.println("Sending in: " + queries.toString());
-					minions.execute(threadIndex.new ExactSearchMinion(queries, results));
+		}
+
+		// queries are handed out in the same sorted order their results are written in
+		allQueries.sort(Comparator.comparing(queries -> String.join(" ", queries)));
+		allPhrases.sort(Comparator.comparing(phrase -> String.join(" ", phrase)));
+
+		if (streamPath == null) {
+			search(exact, mode, top, threads);
+		} else {
+			TreeSet<String> keys = new TreeSet<String>();
+			for (var queries : mode == SearchMode.PHRASE ? allPhrases : allQueries) {
+				if (!queries.isEmpty()) {
+					keys.add(String.join(" ", queries));
 				}
-				log.debug("We are starting to shut down");
-				// System.out.println("We are Shutting down");
-				minions.finish();
-				// System.out.println("Shut Down Completed");
-				log.debug("We are Shutting down");
+			}
+			try (OrderedResultWriter writer = new OrderedResultWriter(streamPath, streamFormat, keys,
+					threads * STREAM_WINDOW)) {
+				stream = writer;
+				search(exact, mode, top, threads);
+			} finally {
+				stream = null;
+			}
+		}
+
+		if (failure != null) {
+			throw failure.getCause();
+		}
+	}
+
+	/**
+	 * Makes the next call to parse write the results of each query to the file as
+	 * soon as it is done, in the same sorted order as {@link #toJson(Path)},
+	 * instead of keeping every result until the end.
+	 *
+	 * @param outputFile the file to write to
+	 * @param format     the output format to use
+	 */
+	public void streamResults(Path outputFile, OutputFormat format) {
+		this.streamPath = outputFile;
+		this.streamFormat = format;
+	}
+
+	/**
+	 * Gives every query a deadline. A query that is still searching when its
+	 * deadline passes stops and keeps the results it found so far, and is marked
+	 * as partial in the {@code -explain} output.
+	 *
+	 * @param millis how long each query may search in milliseconds, or 0 for no
+	 *               limit
+	 */
+	public void setDeadline(long millis) {
+		this.deadline = Math.max(0, millis) * 1_000_000;
+	}
+
+	/**
+	 * Cleans and stems the words of a query as typed. A phrase keeps its words in
+	 * order, repeats and all, and any other query keeps each word once in sorted
+	 * order. The words joined by spaces are the query the results are kept under.
+	 *
+	 * @param line    the query as typed
+	 * @param mode    how the words of the query are combined
+	 * @param stemmer the stemmer to use
+	 * @return the stemmed query words
+	 */
+	public static Collection<String> stem(String line, SearchMode mode, SnowballStemmer stemmer) {
+		Collection<String> words = mode == SearchMode.PHRASE ? new ArrayList<String>() : new TreeSet<String>();
+		for (var word : TextParser.parse(line)) {
+			words.add(stemmer.stem(word).toString());
+		}
+		return words;
+	}
+
+	/**
+	 * Starts the plan of a single query, without a deadline. The words of a phrase
+	 * are always matched exactly.
+	 *
+	 * @param words the stemmed query words, in order for a phrase
+	 * @param exact whether to match the words exactly or as prefixes
+	 * @param mode  how the words of the query are combined
+	 * @return the plan
+	 */
+	public static QueryPlan newPlan(Collection<String> words, boolean exact, SearchMode mode) {
+		return new QueryPlan(words, exact || mode == SearchMode.PHRASE);
+	}
+
+	/**
+	 * Searches a view of the index for a single query, the same way for the query
+	 * minions and the {@link SearchServer}.
+	 *
+	 * @param view the view of the index to search
+	 * @param plan the plan of the query, from {@link #newPlan(Collection, boolean, SearchMode)}
+	 * @param mode how the words of the query are combined
+	 * @param top  the number of results to keep, or 0 to keep every result
+	 * @return the sorted search results
+	 */
+	public static ArrayList<SearchResult> search(SearchableIndex view, QueryPlan plan, SearchMode mode, int top) {
+		if (mode == SearchMode.PHRASE) {
+			return TopKSearch.limit(view.phraseSearch(plan), top);
+		} else if (mode == SearchMode.AND) {
+			return TopKSearch.limit(view.andSearch(plan), top);
+		} else if (top > 0) {
+			return view.topSearch(plan, top);
+		} else {
+			return view.results(List.of(view.counts(plan)));
+		}
+	}
+
+	/**
+	 * Starts the plan of a query, with a deadline if queries have one.
+	 *
+	 * @param words the query words, in order for a phrase
+	 * @param exact whether to match the words exactly or as prefixes
+	 * @param mode  how the words of the query are combined
+	 * @return the plan
+	 */
+	private QueryPlan plan(Collection<String> words, boolean exact, SearchMode mode) {
+		return plan(words, exact, mode, System.nanoTime());
+	}
+
+	/**
+	 * Starts the plan of a query that started earlier, with a deadline if queries
+	 * have one.
+	 *
+	 * @param words the query words, in order for a phrase
+	 * @param exact whether to match the words exactly or as prefixes
+	 * @param mode  how the words of the query are combined
+	 * @param start when the query started, from {@link System#nanoTime()}
+	 * @return the plan
+	 */
+	private QueryPlan plan(Collection<String> words, boolean exact, SearchMode mode, long start) {
+		QueryPlan plan = newPlan(words, exact, mode);
+		if (deadline > 0) {
+			plan.setDeadline(start + deadline);
+		}
+		return plan;
+	}
+
+	/**
+	 * Searches with the batch search or one minion per query, depending on the
+	 * search mode. The whole batch searches one pinned view of the index, so every
+	 * query sees the same index even if it is being built at the same time.
+	 *
+	 * @param exact   whether to match query words exactly or as prefixes
+	 * @param mode    how the words of each query are combined
+	 * @param top     the number of results to keep for each query, or 0
+	 * @param threads the number of threads to use
+	 */
+	private void search(boolean exact, SearchMode mode, int top, int threads) {
+		failure = null;
+		pinned = threadIndex.pin();
+		log.debug("Searching {}", pinned);
+		try {
+			if (mode == SearchMode.OR && top <= 0) {
+				search(exact, threads);
 			} else {
-				minions = new WorkQueue(threads);
-				log.debug("There are " + allQueries.size() + " queries");
-				for (var queries : allQueries) {
-					log.debug("Sending in: " + queries.toString());
-					// System.out.println("Sending in: " + queries.toString());
-					minions.execute(threadIndex.new PartialSearchMinion(queries, results));
+				querySearch(exact, mode, top, threads);
+			}
+		} finally {
+			pinned.unpin();
+			pinned = null;
+		}
+		if (partial.get() > 0) {
+			log.info("{} queries hit their deadline and have partial results", partial.get());
+		}
+	}
+
+	/**
+	 * Keeps the results of a finished query, or writes them out if results are
+	 * being streamed.
+	 *
+	 * @param query        the query
+	 * @param queryResults the sorted search results of the query
+	 */
+	private void addResults(String query, ArrayList<SearchResult> queryResults) {
+		if (stream != null) {
+			stream.add(query, queryResults);
+		} else {
+			synchronized (results) {
+				results.put(query, queryResults);
+			}
+		}
+	}
+
+	/**
+	 * Records a search that failed. The streamed results are aborted, since they
+	 * would be missing the query without any sign in the file, and the searches
+	 * that have not started yet are skipped.
+	 *
+	 * @param query the query or word whose search failed
+	 * @param e     why it failed
+	 */
+	private void fail(String query, UncheckedIOException e) {
+		log.debug("Could not search {}", query, e);
+		synchronized (this) {
+			if (failure == null) {
+				failure = e;
+			}
+		}
+		if (stream != null) {
+			stream.abort();
+		}
+	}
+
+	/**
+	 * Leaves a query whose search failed out of the streamed results, so the
+	 * queries after it are not kept waiting.
+	 *
+	 * @param query the query
+	 */
+	private void skipResults(String query) {
+		if (stream != null) {
+			stream.skip(query);
+		}
+	}
+
+	/**
+	 * Searches every and, phrase or top query with its own minion.
+	 *
+	 * @param exact   whether to match query words exactly or as prefixes
+	 * @param mode    how the words of each query are combined
+	 * @param top     the number of results to keep for each query
+	 * @param threads the number of threads to use
+	 */
+	private void querySearch(boolean exact, SearchMode mode, int top, int threads) {
+		minions = new WorkQueue(threads);
+		if (mode == SearchMode.PHRASE) {
+			for (var phrase : allPhrases) {
+				if (!phrase.isEmpty()) {
+					minions.execute(new QueryMinion(phrase, exact, mode, top));
+				}
+			}
+		} else {
+			for (var queries : allQueries) {
+				if (!queries.isEmpty()) {
+					minions.execute(new QueryMinion(queries, exact, mode, top));
+				}
+			}
+		}
+		minions.finish();
+	}
+
+	/**
+	 * Searches all the queries as one batch. Every unique query word is only
+	 * looked up (or expanded as a prefix) once, and the counts are shared by all of
+	 * the queries that contain that word. The plan of each query reports the
+	 * postings visited for its words, even though that work is shared.
+	 *
+	 * A query starts once the first of its words starts being counted, and a word
+	 * is counted under the deadline of the first query that uses it. The words are
+	 * queued query by query, so the words of a query are counted close together.
+	 *
+	 * @param exact   boolean condition used to pick exact or partial search
+	 * @param threads the number of threads to use
+	 */
+	private void search(boolean exact, int threads) {
+		LinkedHashMap<String, AtomicLong> words = new LinkedHashMap<String, AtomicLong>();
+		for (var queries : allQueries) {
+			AtomicLong started = new AtomicLong(NOT_STARTED);
+			for (var word : queries) {
+				words.putIfAbsent(word, started);
+			}
+		}
+
+		HashMap<String, HashMap<String, Integer>> counts = new HashMap<String, HashMap<String, Integer>>();
+		HashMap<String, QueryPlan> wordPlans = new HashMap<String, QueryPlan>();
+		minions = new WorkQueue(threads);
+		log.debug("There are {} queries and {} unique words", allQueries.size(), words.size());
+
+		for (var word : words.entrySet()) {
+			minions.execute(new CountMinion(word.getKey(), exact, word.getValue(), counts, wordPlans));
+		}
+		minions.await();
+
+		for (var queries : allQueries) {
+			if (!queries.isEmpty()) {
+				minions.execute(new ResultMinion(queries, exact, counts, wordPlans));
+			}
+		}
+		log.debug("We are starting to shut down");
+		minions.finish();
+		log.debug("We are Shutting down");
+	}
+
+	/**
+	 * Keeps the plan of a query for explain, and counts it if it hit its deadline.
+	 *
+	 * @param query the query the plan belongs to
+	 * @param plan  the plan after searching
+	 */
+	private void addPlan(String query, QueryPlan plan) {
+		if (plan.isPartial()) {
+			partial.incrementAndGet();
+			log.debug("Query {} hit its deadline", query);
+		}
+		synchronized (plans) {
+			plans.put(query, plan);
+		}
+	}
+
+	/**
+	 * Class for counting a single query word across the index
+	 *
+	 * @param word      the word we are counting
+	 * @param exact     whether to match the word exactly or as a prefix
+	 * @param started   when the first query using the word started, set by the
+	 *                  first of its words to be counted
+	 * @param counts    where we share the counts of every word
+	 * @param wordPlans where we share the plan of every word
+	 */
+	private class CountMinion implements Runnable {
+		private final String word;
+		private final boolean exact;
+		private final AtomicLong started;
+		private final HashMap<String, HashMap<String, Integer>> counts;
+		private final HashMap<String, QueryPlan> wordPlans;
+
+		public CountMinion(String word, boolean exact, AtomicLong started,
+				HashMap<String, HashMap<String, Integer>> counts, HashMap<String, QueryPlan> wordPlans) {
+			this.word = word;
+			this.exact = exact;
+			this.started = started;
+			this.counts = counts;
+			this.wordPlans = wordPlans;
+		}
+
+		@Override
+		public void run() {
+			if (failure != null) { // the queries of this word would be skipped anyway
+				return;
+			}
+			long start = Metrics.start();
+			started.compareAndSet(NOT_STARTED, System.nanoTime());
+			QueryPlan plan = plan(List.of(word), exact, SearchMode.OR, started.get());
+			HashMap<String, Integer> wordCounts;
+			try {
+				wordCounts = pinned.counts(plan);
+			} catch (UncheckedIOException e) {
+				fail(word, e);
+				return;
+			}
+			Metrics.time("query.word.nanos", start);
+			synchronized (counts) {
+				counts.put(word, wordCounts);
+				wordPlans.put(word, plan);
+			}
+		}
+	}
+
+	/**
+	 * Class for building the results of a query from the shared counts
+	 *
+	 * @param queries   the words we are looking for
+	 * @param exact     whether the words were matched exactly or as prefixes
+	 * @param counts    the counts of every word
+	 * @param wordPlans the plan of every word
+	 */
+	private class ResultMinion implements Runnable {
+		private final TreeSet<String> queries;
+		private final boolean exact;
+		private final HashMap<String, HashMap<String, Integer>> counts;
+		private final HashMap<String, QueryPlan> wordPlans;
+
+		public ResultMinion(TreeSet<String> queries, boolean exact, HashMap<String, HashMap<String, Integer>> counts,
+				HashMap<String, QueryPlan> wordPlans) {
+			this.queries = queries;
+			this.exact = exact;
+			this.counts = counts;
+			this.wordPlans = wordPlans;
+		}
+
+		@Override
+		public void run() {
+			log.debug("Working on queries: {}", queries);
+			long start = Metrics.start();
+			SearchEvents.QuerySearched event = new SearchEvents.QuerySearched();
+			event.begin();
+			ArrayList<HashMap<String, Integer>> queryCounts = new ArrayList<HashMap<String, Integer>>();
+			QueryPlan plan = new QueryPlan(queries, exact);
+			String query = String.join(" ", queries);
+			boolean added = false;
+			try {
+				if (failure != null) { // nothing more is written once a search failed
+					return;
+				}
+				synchronized (counts) {
+					for (var word : queries) {
+						if (!counts.containsKey(word)) { // counting the word failed
+							return;
+						}
+						queryCounts.add(counts.get(word));
+						plan.add(wordPlans.get(word));
+					}
+				}
+				ArrayList<SearchResult> queryResults = pinned.results(queryCounts);
+				addResults(query, queryResults);
+				added = true;
+				addPlan(query, plan);
+				Metrics.query(plan, start);
+				SearchEvents.searched(event, query, plan, queryResults);
+			} finally {
+				if (!added) {
+					skipResults(query);
 				}
-				log.debug("We are starting to shut down");
-				// System.out.println("We are Shutting down");
-				minions.finish();
-				// System.out.println("Shut Down Completed");
-				log.debug("We have Shutting down");
 			}
+		}
+	}
+
+	/**
+	 * Class for running an and search, a phrase search or a top search on a single
+	 * query
+	 *
+	 * @param queries the words we are looking for, in order for a phrase
+	 * @param exact   whether to match query words exactly or as prefixes
+	 * @param mode    how the words of the query are combined
+	 * @param top     the number of results to keep, or 0 to keep every result
+	 */
+	private class QueryMinion implements Runnable {
+		private final Collection<String> queries;
+		private final boolean exact;
+		private final SearchMode mode;
+		private final int top;
 
+		public QueryMinion(Collection<String> queries, boolean exact, SearchMode mode, int top) {
+			this.queries = queries;
+			this.exact = exact;
+			this.mode = mode;
+			this.top = top;
 		}
 
+		@Override
+		public void run() {
+			log.debug("Working on queries: {}", queries);
+			long start = Metrics.start();
+			SearchEvents.QuerySearched event = new SearchEvents.QuerySearched();
+			event.begin();
+			String query = String.join(" ", queries);
+			boolean added = false;
+			try {
+				if (failure != null) { // nothing more is written once a search failed
+					return;
+				}
+				QueryPlan plan = plan(queries, exact, mode);
+				ArrayList<SearchResult> queryResults = search(pinned, plan, mode, top);
+				addResults(query, queryResults);
+				added = true;
+				addPlan(query, plan);
+				Metrics.query(plan, start);
+				SearchEvents.searched(event, query, plan, queryResults);
+			} catch (UncheckedIOException e) {
+				fail(query, e);
+			} finally {
+				if (!added) {
+					skipResults(query);
+				}
+			}
+		}
 	}
 
 	/**
@@ -105,4 +576,25 @@ public class MultiThreadedQueryParser {
 	public void toJson(Path outputFile) throws IOException {
 		TreeJSONWriter.asSearchResult(results, outputFile);
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Calls TreeJSONWriter and sends in the results to be written in the given
+	 * format
+	 *
+	 * @param outputFile the file to write to
+	 * @param format     the output format to use
+	 */
+	public void toJson(Path outputFile, OutputFormat format) throws IOException {
+		TreeJSONWriter.asSearchResult(results, outputFile, format);
+	}
+
+	/**
+	 * Calls TreeJSONWriter and sends in the plans of every query, with the number
+	 * of postings each query expected to visit and actually visited
+	 *
+	 * @param outputFile the file to write to
+	 */
+	public void explainToJson(Path outputFile) throws IOException {
+		TreeJSONWriter.asExplain(plans, outputFile);
+	}
+}
@@ -4,36 +4,223 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.FileVisitOption;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import opennlp.tools.stemmer.snowball.SnowballStemmer;
 
+/**
+ * Builds an index from a directory of text files with a work queue. Each file
+ * is read into its own small index without any locking, and finished files are
+ * committed to the shared index together at refresh points, so readers of the
+ * shared index only ever see whole files. By default every file is committed as
+ * soon as it is done. For a live build, files are committed in batches once per
+ * refresh interval instead, so searches can run during the build without
+ * fighting over the write lock for every file. The interval is kept by its own
+ * timer thread rather than checked as files finish, so one slow file cannot
+ * keep the files finished before it out of sight.
+ *
+ * At most {@link #DEFAULT_CAPACITY} files wait in the work queue at once by
+ * default. Once the queue is full, the directory walk reads the next file
+ * itself, so a huge tree never has a task object for every file in memory.
+ */
 public class MultithreadedTextFileBuilder {
 	public static final Logger log = LogManager.getLogger(Driver.class);
 	private WorkQueue minions;
 
+	/** Files are committed once this many are waiting. */
+	private final int refreshFiles;
+
+	/** Files are committed this often, or 0 to only commit by the number of files. */
+	private final long refreshMillis;
+
+	/** The default number of files that can wait in the work queue. */
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	private int capacity = DEFAULT_CAPACITY;
+
+	/** Only files whose path hashes to this shard are built. */
+	private int shard = 0;
+	private int shards = 1;
+
+	private final ArrayList<InvertedIndex> pending = new ArrayList<InvertedIndex>();
+	private Consumer<List<InvertedIndex>> target;
+
+	/** Commits the waiting files once per refresh interval, if there is one. */
+	private ScheduledExecutorService timer;
+
+	/**
+	 * Initializes a builder that commits every file as soon as it is done.
+	 */
+	public MultithreadedTextFileBuilder() {
+		this(1, 0);
+	}
+
+	/**
+	 * Initializes a builder that commits files in batches.
+	 *
+	 * @param refreshFiles  the most files to keep waiting before a commit
+	 * @param refreshMillis the longest time between commits in milliseconds, or 0
+	 *                      to only commit by the number of files
+	 */
+	public MultithreadedTextFileBuilder(int refreshFiles, long refreshMillis) {
+		this.refreshFiles = Math.max(1, refreshFiles);
+		this.refreshMillis = Math.max(0, refreshMillis);
+	}
+
+	/**
+	 * Sets how many files can wait in the work queue of the next build.
+	 *
+	 * @param capacity the number of files
+	 */
+	public void setCapacity(int capacity) {
+		this.capacity = Math.max(1, capacity);
+	}
+
+	/**
+	 * Only builds one part of the files, so several processes given the same path
+	 * each build a different part. Every file belongs to exactly one shard.
+	 *
+	 * @param shard  the part to build, from 0
+	 * @param shards the number of parts
+	 */
+	public void setShard(int shard, int shards) {
+		if (shards < 1 || shard < 0 || shard >= shards) {
+			throw new IllegalArgumentException("No shard " + shard + " of " + shards);
+		}
+		this.shard = shard;
+		this.shards = shards;
+	}
+
+	/**
+	 * Checks whether a file belongs to the shard this builder builds.
+	 *
+	 * @param file the file to check
+	 * @return true if the file should be built
+	 */
+	public boolean inShard(Path file) {
+		return TextFileBuilder.inShard(file, shard, shards);
+	}
+
 	public ThreadSafeInvertedIndex multithreadedTraverse(Path path, ThreadSafeInvertedIndex index, int threads) {
-		minions = new WorkQueue(threads);
-		minions.execute(new DirectoryMinion(path, index));
-		minions.finish();
+		start(path, index::addAll, threads);
+		finish();
 		return index;
 	}
 
+	/**
+	 * Starts building in the background and returns right away. Finished files are
+	 * handed to the target at every refresh point, and a timer starts the refresh
+	 * points of the refresh interval until the build finishes.
+	 *
+	 * @param path    the directory or file to build from
+	 * @param target  where to commit the finished files
+	 * @param threads the number of threads to use
+	 */
+	public void start(Path path, Consumer<List<InvertedIndex>> target, int threads) {
+		this.target = target;
+		minions = new WorkQueue(threads, capacity, false);
+		if (refreshMillis > 0) {
+			timer = Executors.newSingleThreadScheduledExecutor(task -> {
+				Thread thread = new Thread(task, "refresh");
+				thread.setDaemon(true);
+				return thread;
+			});
+			timer.scheduleWithFixedDelay(() -> {
+				try {
+					refresh();
+				} catch (RuntimeException e) { // a failed refresh must not stop the later ones
+					log.warn("Could not refresh the index", e);
+				}
+			}, refreshMillis, refreshMillis, TimeUnit.MILLISECONDS);
+		}
+		minions.execute(new DirectoryMinion(path));
+	}
+
+	/**
+	 * Waits for the build started by {@link #start(Path, Consumer, int)} to finish
+	 * and commits the files that are still waiting.
+	 */
+	public void finish() {
+		minions.finish();
+		if (timer != null) { // lets a refresh that already started finish first
+			timer.shutdown();
+			try {
+				timer.awaitTermination(1, TimeUnit.MINUTES);
+			} catch (InterruptedException e) {
+				log.debug("Interrupted waiting for the refresh timer", e);
+				Thread.currentThread().interrupt();
+			}
+			timer = null;
+		}
+		refresh();
+	}
+
+	/**
+	 * Commits every waiting file to the target.
+	 */
+	public void refresh() {
+		ArrayList<InvertedIndex> batch;
+		synchronized (pending) {
+			batch = new ArrayList<InvertedIndex>(pending);
+			pending.clear();
+		}
+		commit(batch);
+	}
+
+	/**
+	 * Adds a finished file to the waiting files, and commits them if there are
+	 * enough of them for a refresh.
+	 *
+	 * @param file the index of the finished file
+	 */
+	private void add(InvertedIndex file) {
+		ArrayList<InvertedIndex> batch = null;
+		synchronized (pending) {
+			pending.add(file);
+			if (pending.size() >= refreshFiles) {
+				batch = new ArrayList<InvertedIndex>(pending);
+				pending.clear();
+			}
+		}
+		if (batch != null) {
+			commit(batch);
+		}
+	}
+
+	/**
+	 * Hands a batch of files to the target.
+	 *
+	 * @param batch the files to commit
+	 */
+	private void commit(List<InvertedIndex> batch) {
+		if (batch.isEmpty()) {
+			return;
+		}
+		long start = Metrics.start();
+		target.accept(batch);
+		Metrics.increment("build.refreshes");
+		Metrics.time("build.refresh.nanos", start);
+		log.debug("Committed {} files", batch.size());
+	}
+
 	/**
 	 * Class for calling our stemFileMinion
 	 * 
 	 * @param directory the path we are traversing
-	 * @param index     the index we are adding to
 	 */
 	private class DirectoryMinion implements Runnable {
 		private final Path directory;
-		private final ThreadSafeInvertedIndex index;
 
-		public DirectoryMinion(Path directory, ThreadSafeInvertedIndex index) {
+		public DirectoryMinion(Path directory) {
 			this.directory = directory;
-			this.index = index;
 		}
 
 		@Override
@@ -43,11 +230,11 @@ public class MultithreadedTextFileBuilder {
 					String name = p.toString().toLowerCase();
 					boolean name1 = name.endsWith(".txt") || name.endsWith(".text");
 					return name1;
-				}).forEach(p -> {
-					minions.execute(new stemFileMinion(p, index));
+				}).filter(p -> inShard(p)).forEach(p -> {
+					minions.execute(new stemFileMinion(p));
 				});
 			} catch (IOException e) {
-				log.debug("our traversing of Directories failed:" + e);
+				log.debug("our traversing of Directories failed", e);
 			}
 		}
 	}
@@ -56,16 +243,15 @@ public class MultithreadedTextFileBuilder {
 	 * Class for running our stemFile code
 	 * 
 	 * @param inputFile the file we are looking at
-	 * @param index     the index we are adding to
 	 */
 	private class stemFileMinion implements Runnable {
 		private final Path inputFile;
-		private final ThreadSafeInvertedIndex index;
+		private final InvertedIndex index;
 
-		public stemFileMinion(Path inputFile, ThreadSafeInvertedIndex index) {
+		public stemFileMinion(Path inputFile) {
 			// log.debug("Thread Check!");
 			this.inputFile = inputFile;
-			this.index = index;
+			this.index = new InvertedIndex();
 		}
 
 		@Override
@@ -73,6 +259,9 @@ public class MultithreadedTextFileBuilder {
 			log.debug("Thread Check!");
 			SnowballStemmer stemmer = new SnowballStemmer(SnowballStemmer.ALGORITHM.ENGLISH);
 
+			long start = Metrics.start();
+			SearchEvents.FileIndexed event = new SearchEvents.FileIndexed();
+			event.begin();
 			try (BufferedReader reader = Files.newBufferedReader(inputFile, StandardCharsets.UTF_8)) {
 
 				String line = reader.readLine();
@@ -92,9 +281,23 @@ public class MultithreadedTextFileBuilder {
 					}
 					line = reader.readLine(); // reads next line
 				}
+				if (Metrics.isEnabled()) {
+					Metrics.increment("build.files");
+					Metrics.add("build.tokens", position_counter - 1);
+					Metrics.add("build.bytes", Files.size(inputFile));
+					Metrics.time("build.file.nanos", start);
+				}
+				event.end();
+				if (event.shouldCommit()) {
+					event.path = name;
+					event.bytes = Files.size(inputFile);
+					event.tokens = position_counter - 1;
+					event.commit();
+				}
 			} catch (IOException e) {
 				log.debug("Our Try with Resources block had an IOexception", e);
 			}
+			add(this.index); // whatever was read before an error is kept
 		}
 	}
 }
@@ -0,0 +1,218 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.TreeSet;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Writes the search results of each query to a file as soon as the query is
+ * done, instead of keeping every result until the end. The file is the same as
+ * the one written by
+ * {@link TreeJSONWriter#asSearchResult(java.util.TreeMap, Path, OutputFormat)}.
+ *
+ * Every query is known before searching starts, so each one gets its place in
+ * sorted order up front. Queries that finish early wait in a small reorder
+ * buffer until every query before them is written. A minion that gets too far
+ * ahead of the next query to be written waits, so only a window of results is
+ * ever kept in memory. This never deadlocks as long as queries are handed to the
+ * work queue in sorted order, since the next query to be written is then always
+ * already running, and every query is either added or skipped. A minion that
+ * fails must skip its query, or abort the whole file, so the queries after it
+ * are not kept waiting forever.
+ *
+ * A skipped query is left out of the file. Since the query after it may be
+ * skipped as well, the last query written to a JSON array is only finished once
+ * the next one is known.
+ */
+public class OrderedResultWriter implements AutoCloseable {
+	public static final Logger log = LogManager.getLogger(Driver.class);
+
+	private final BufferedWriter writer;
+	private final OutputFormat format;
+	private final HashMap<String, Integer> order;
+	private final HashMap<Integer, ArrayList<SearchResult>> finished;
+	private final ArrayList<String> queries;
+	private final int window;
+	private int next;
+	private int skipped;
+	private boolean aborted;
+	private IOException failure;
+
+	/** The place of the query written last, finished once the next one is known. */
+	private int held = -1;
+	private ArrayList<SearchResult> heldResults;
+
+	/**
+	 * Opens the file and starts the JSON array.
+	 *
+	 * @param path    the file to write to
+	 * @param format  the output format to use
+	 * @param queries every query that will be written
+	 * @param window  how many queries past the next one to be written can be kept
+	 * @throws IOException if unable to open or write to the file
+	 */
+	public OrderedResultWriter(Path path, OutputFormat format, Collection<String> queries, int window)
+			throws IOException {
+		this.queries = new ArrayList<String>(new TreeSet<String>(queries));
+		this.order = new HashMap<String, Integer>();
+		for (int i = 0; i < this.queries.size(); i++) {
+			order.put(this.queries.get(i), i);
+		}
+		this.finished = new HashMap<Integer, ArrayList<SearchResult>>();
+		this.window = Math.max(window, 1);
+		this.next = 0;
+
+		this.format = format;
+		this.writer = format.newWriter(path);
+		if (!format.isNdjson()) {
+			writer.write('[');
+			writer.write(System.lineSeparator());
+		}
+	}
+
+	/**
+	 * Hands over the results of a finished query. The results are written right
+	 * away if every query before it is written, and kept until then otherwise.
+	 *
+	 * @param query   the query
+	 * @param results the sorted search results of the query
+	 */
+	public synchronized void add(String query, ArrayList<SearchResult> results) {
+		Integer place = order.get(query);
+		if (place == null) {
+			log.debug("Skipping results for unexpected query: {}", query);
+			return;
+		}
+
+		while (!aborted && place >= next + window) { // waits for the queries before us to catch up
+			try {
+				this.wait();
+			} catch (InterruptedException e) {
+				log.debug("This.Wait had an exception", e);
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		if (aborted) {
+			return;
+		}
+
+		finished.put(place, results);
+		drain();
+	}
+
+	/**
+	 * Leaves a query out of the file, such as one whose search failed, so the
+	 * queries after it do not wait for it. This never waits.
+	 *
+	 * @param query the query
+	 */
+	public synchronized void skip(String query) {
+		Integer place = order.get(query);
+		if (place == null || aborted || place < next || finished.containsKey(place)) {
+			return;
+		}
+		log.debug("Skipping the results of query {}", query);
+		skipped++;
+		finished.put(place, null);
+		drain();
+	}
+
+	/**
+	 * Stops writing any more queries and wakes every minion waiting to add its
+	 * results, which are then dropped. The file is still closed as valid JSON.
+	 */
+	public synchronized void abort() {
+		if (!aborted) {
+			log.debug("Aborting the results after {} of {} queries", next, queries.size());
+			aborted = true;
+			finished.clear();
+			this.notifyAll();
+		}
+	}
+
+	/**
+	 * Writes every finished query that has no unfinished query before it, and
+	 * wakes the minions waiting for room.
+	 */
+	private void drain() {
+		while (finished.containsKey(next)) {
+			ArrayList<SearchResult> nextResults = finished.remove(next);
+			if (failure == null && nextResults != null) {
+				try {
+					write(next, nextResults);
+				} catch (IOException e) {
+					failure = e;
+				}
+			}
+			next++;
+		}
+		this.notifyAll();
+	}
+
+	/**
+	 * Writes the results of a query. In a JSON array the query written before it
+	 * is finished first, and the query itself is held until the next one is known,
+	 * unless it is the last query.
+	 *
+	 * @param place   the place of the query
+	 * @param results the sorted search results of the query
+	 * @throws IOException if unable to write to the file
+	 */
+	private void write(int place, ArrayList<SearchResult> results) throws IOException {
+		if (format.isNdjson()) {
+			TreeJSONWriter.writeNdjsonQuery(queries.get(place), results, writer);
+			return;
+		}
+		if (held >= 0) {
+			TreeJSONWriter.writeQuery(queries.get(held), heldResults, false, writer, 0);
+		}
+		held = place;
+		heldResults = results;
+		if (place == queries.size() - 1) {
+			writeHeld();
+		}
+	}
+
+	/**
+	 * Writes the query held back as the last one of the JSON array, if there is
+	 * one.
+	 *
+	 * @throws IOException if unable to write to the file
+	 */
+	private void writeHeld() throws IOException {
+		if (held >= 0) {
+			TreeJSONWriter.writeQuery(queries.get(held), heldResults, true, writer, 0);
+			held = -1;
+			heldResults = null;
+		}
+	}
+
+	/**
+	 * Ends the JSON array, if there is one, and closes the file.
+	 *
+	 * @throws IOException if any results could not be written
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		try {
+			if (failure != null) {
+				throw failure;
+			}
+			if (next - skipped < queries.size()) {
+				log.debug("Only {} of {} queries were written", next - skipped, queries.size());
+			}
+			if (!format.isNdjson()) {
+				writeHeld();
+				writer.write("]");
+			}
+		} finally {
+			writer.close();
+		}
+	}
+}
@@ -0,0 +1,82 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * How the index, locations and search results are written to files. By default
+ * they are written as pretty JSON, but they can also be written as compact
+ * newline-delimited JSON with one record per line, and either can be compressed
+ * with gzip.
+ */
+public class OutputFormat {
+
+	/** The default pretty JSON format. */
+	public static final OutputFormat JSON = new OutputFormat(false, false);
+
+	/** The size of the buffer used when compressing. */
+	private static final int GZIP_BUFFER = 1 << 16;
+
+	private final boolean ndjson;
+	private final boolean gzip;
+
+	/**
+	 * Initializes the output format.
+	 *
+	 * @param ndjson whether to write one compact record per line
+	 * @param gzip   whether to compress the files with gzip
+	 */
+	public OutputFormat(boolean ndjson, boolean gzip) {
+		this.ndjson = ndjson;
+		this.gzip = gzip;
+	}
+
+	/**
+	 * Picks the output format based on the command-line flags.
+	 *
+	 * @param map the parsed command-line arguments
+	 * @return the output format to use
+	 */
+	public static OutputFormat fromFlags(ArgumentMap map) {
+		return new OutputFormat(map.hasFlag("-ndjson"), map.hasFlag("-gzip"));
+	}
+
+	/**
+	 * @return whether to write one compact record per line
+	 */
+	public boolean isNdjson() {
+		return ndjson;
+	}
+
+	/**
+	 * @return whether the files are compressed with gzip
+	 */
+	public boolean isGzip() {
+		return gzip;
+	}
+
+	/**
+	 * @return whether this is the default pretty JSON format
+	 */
+	public boolean isDefault() {
+		return !ndjson && !gzip;
+	}
+
+	/**
+	 * Opens a writer to the file, compressing everything written to it if needed.
+	 *
+	 * @param path the file to write to
+	 * @return the writer to use
+	 * @throws IOException if unable to open the file
+	 */
+	public BufferedWriter newWriter(Path path) throws IOException {
+		if (!gzip) {
+			return Files.newBufferedWriter(path, StandardCharsets.UTF_8);
+		}
+		return new BufferedWriter(new OutputStreamWriter(
+				new GZIPOutputStream(Files.newOutputStream(path), GZIP_BUFFER), StandardCharsets.UTF_8), GZIP_BUFFER);
+	}
+}
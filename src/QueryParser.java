@@ -12,6 +12,7 @@ import opennlp.tools.stemmer.snowball.SnowballStemmer;
 public class QueryParser {
 
 	private final TreeMap<String, ArrayList<SearchResult>> results;
+	private final TreeMap<String, QueryPlan> plans;
 	private final InvertedIndex index;
 
 	/**
@@ -22,6 +23,7 @@ public class QueryParser {
 	QueryParser(InvertedIndex index) {
 		this.index = index;
 		results = new TreeMap<String, ArrayList<SearchResult>>();
+		plans = new TreeMap<String, QueryPlan>();
 
 	}
 
@@ -35,6 +37,24 @@ public class QueryParser {
 	 *
 	 */
 	public void parse(Path inputFile, boolean exact) throws IOException {
+		parse(inputFile, exact, SearchMode.OR, 0);
+	}
+
+	/**
+	 * Reads a file line by line, and searches for the words given in the file.
+	 * calls andSearch or phraseSearch when asked to, otherwise searches exactly or
+	 * partially based on the boolean condition exact, or calls topSearch if only
+	 * the best results are kept. Keeps the plan of every query for explain.
+	 *
+	 * @param inputFile the input file to parse
+	 * @param exact     boolean condition used to call partialSearch/exactSearch
+	 * @param mode      how the words of each query are combined
+	 * @param top       the number of results to keep for each query, or 0 to keep
+	 *                  every result
+	 * @throws IOException if unable to read or write to file
+	 *
+	 */
+	public void parse(Path inputFile, boolean exact, SearchMode mode, int top) throws IOException {
 
 		SnowballStemmer stemmer = new SnowballStemmer(SnowballStemmer.ALGORITHM.ENGLISH);
 
@@ -43,29 +63,40 @@ public class QueryParser {
 
 			while (line != null) {
 				TreeSet<String> queries = new TreeSet<String>();
+				ArrayList<String> phrase = new ArrayList<String>();
 				String[] lineList = TextParser.parse(line);
 
 				for (var lines : lineList) {
 					String stemmedQuery = stemmer.stem(lines.toString()).toString();
+					phrase.add(stemmedQuery);
 					if (!queries.contains(stemmedQuery)) {
 						queries.add(stemmedQuery);
 					}
 				}
 
-				String query = String.join(" ", queries);
+				String query = mode == SearchMode.PHRASE ? String.join(" ", phrase) : String.join(" ", queries);
 
-				if (!results.containsKey(query)) {
-					if (exact) {
-						var searchResults = index.exactSearch(queries);
-						if (query.length() >= 1) {
-							results.put(query, searchResults);
-						}
+				if (!results.containsKey(query) && query.length() >= 1) {
+					long start = Metrics.start();
+					SearchEvents.QuerySearched event = new SearchEvents.QuerySearched();
+					event.begin();
+					QueryPlan plan;
+					if (mode == SearchMode.PHRASE) {
+						plan = new QueryPlan(phrase, true);
+						results.put(query, TopKSearch.limit(index.phraseSearch(plan), top));
+					} else if (mode == SearchMode.AND) {
+						plan = new QueryPlan(queries, exact);
+						results.put(query, TopKSearch.limit(index.andSearch(plan), top));
+					} else if (top > 0) {
+						plan = new QueryPlan(queries, exact);
+						results.put(query, index.topSearch(plan, top));
 					} else {
-						var searchResults = index.partialSearch(queries);
-						if (query.length() >= 1) {
-							results.put(query, searchResults);
-						}
+						plan = new QueryPlan(queries, exact);
+						results.put(query, index.search(plan));
 					}
+					plans.put(query, plan);
+					Metrics.query(plan, start);
+					SearchEvents.searched(event, query, plan, results.get(query));
 				}
 				line = reader.readLine();
 			}
@@ -81,4 +112,25 @@ public class QueryParser {
 	public void toJson(Path outputFile) throws IOException {
 		TreeJSONWriter.asSearchResult(results, outputFile);
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Calls TreeJSONWriter and sends in the results to be written in the given
+	 * format
+	 *
+	 * @param outputFile the file to write to
+	 * @param format     the output format to use
+	 */
+	public void toJson(Path outputFile, OutputFormat format) throws IOException {
+		TreeJSONWriter.asSearchResult(results, outputFile, format);
+	}
+
+	/**
+	 * Calls TreeJSONWriter and sends in the plans of every query, with the number
+	 * of postings each query expected to visit and actually visited
+	 *
+	 * @param outputFile the file to write to
+	 */
+	public void explainToJson(Path outputFile) throws IOException {
+		TreeJSONWriter.asExplain(plans, outputFile);
+	}
+}
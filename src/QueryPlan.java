@@ -0,0 +1,388 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Plans how the words of a single query are searched. The postings of every
+ * query word are looked up once, words that are not in the index are set aside
+ * before anything else is done, and the rest are ordered by the number of
+ * locations they were found at so searches can start from the rarest word.
+ *
+ * The plan also keeps track of how many postings it expected to visit and how
+ * many the search actually visited, which can be written out with the
+ * {@code -explain} flag to understand slow queries.
+ *
+ * A plan can have a deadline. The loops that expand prefixes and walk postings
+ * check it every {@link #CHECK_EVERY} steps and stop early once it passed, so a
+ * broad query cannot hold a minion for long. The search then returns what it
+ * found so far, and the plan is marked as partial.
+ */
+public class QueryPlan {
+
+	private final List<String> words;
+	private final boolean exact;
+	private final ArrayList<Term> inOrder = new ArrayList<Term>();
+	private final ArrayList<Term> terms = new ArrayList<Term>();
+	private final ArrayList<String> missing = new ArrayList<String>();
+	private int visited = 0;
+
+	/** How many steps the search loops take between looks at the clock. */
+	public static final int CHECK_EVERY = 256;
+
+	private boolean hasDeadline = false;
+	private long deadline;
+
+	/** Set once the deadline passed, by any of the threads searching the plan. */
+	private volatile boolean partial = false;
+
+	/**
+	 * Initializes a plan for the query words.
+	 *
+	 * @param words the query words, in order for a phrase
+	 * @param exact whether to match the words exactly or as prefixes
+	 */
+	public QueryPlan(Collection<String> words, boolean exact) {
+		this.words = new ArrayList<String>(words);
+		this.exact = exact;
+	}
+
+	/**
+	 * The postings of a single query word. For a partial search this holds the
+	 * postings of every word in the index that starts with the query word.
+	 */
+	public class Term {
+		private final String word;
+		private final ArrayList<String> keywords = new ArrayList<String>();
+		private final ArrayList<TreeMap<String, TreeSet<Integer>>> postings = new ArrayList<>();
+		private int estimate = 0;
+
+		private Term(String word) {
+			this.word = word;
+		}
+
+		private void add(String keyword, TreeMap<String, TreeSet<Integer>> posting) {
+			keywords.add(keyword);
+			postings.add(posting);
+			estimate += posting.size();
+		}
+
+		/**
+		 * @return the query word
+		 */
+		public String getWord() {
+			return word;
+		}
+
+		/**
+		 * @return the words in the index matching the query word
+		 */
+		public List<String> getKeywords() {
+			return keywords;
+		}
+
+		/**
+		 * @return the number of different words in the index matching the query word,
+		 *         which may each have postings from several parts of an index
+		 */
+		public int getMatches() {
+			return (int) keywords.stream().distinct().count();
+		}
+
+		/**
+		 * @return the postings of each word in the index matching the query word
+		 */
+		public List<TreeMap<String, TreeSet<Integer>>> getPostings() {
+			return postings;
+		}
+
+		/**
+		 * @return the number of locations over all of the postings
+		 */
+		public int getEstimate() {
+			return estimate;
+		}
+
+		/**
+		 * Returns the first location at or after the given location, or null if there
+		 * is none.
+		 *
+		 * @param location the location to skip to
+		 * @return the first location at or after location
+		 */
+		public String ceiling(String location) {
+			String ceiling = null;
+			for (var posting : postings) {
+				String next = posting.ceilingKey(location);
+				if (next != null && (ceiling == null || next.compareTo(ceiling) < 0)) {
+					ceiling = next;
+				}
+			}
+			visited += postings.size();
+			return ceiling;
+		}
+
+		/**
+		 * Returns the number of times the query word was found at the location.
+		 *
+		 * @param location the location to look at
+		 * @return the number of times the word was found
+		 */
+		public int count(String location) {
+			int count = 0;
+			for (var posting : postings) {
+				TreeSet<Integer> positions = posting.get(location);
+				if (positions != null) {
+					count += positions.size();
+				}
+			}
+			visited += postings.size();
+			return count;
+		}
+
+		/**
+		 * Returns the positions of an exact query word at the location.
+		 *
+		 * @param location the location to look at
+		 * @return the positions the word was found at
+		 */
+		public TreeSet<Integer> positions(String location) {
+			visited++;
+			return postings.get(0).get(location);
+		}
+	}
+
+	/**
+	 * Looks up the postings of every query word in the index. Callers must hold
+	 * the read lock of the index until they are done with the plan.
+	 *
+	 * @param index the index to search
+	 * @return this plan
+	 */
+	public QueryPlan resolve(TreeMap<String, TreeMap<String, TreeSet<Integer>>> index) {
+		int expanded = 0; // counted over every word, so many narrow prefixes still reach a deadline check
+		for (var word : words) {
+			Term term = new Term(word);
+			if (exact) {
+				var posting = index.get(word);
+				if (posting != null) {
+					term.add(word, posting);
+				}
+			} else {
+				for (var entry : index.tailMap(word).entrySet()) {
+					if (expired(++expanded)) {
+						break;
+					}
+					if (entry.getKey().startsWith(word)) {
+						term.add(entry.getKey(), entry.getValue());
+					} else {
+						break;
+					}
+				}
+			}
+
+			if (term.estimate == 0) {
+				missing.add(word);
+			} else {
+				terms.add(term);
+			}
+			inOrder.add(term);
+		}
+		terms.sort(Comparator.comparingInt(Term::getEstimate));
+		return this;
+	}
+
+	/**
+	 * Adds the terms of an already resolved plan to this one, for queries whose
+	 * words were searched on their own and shared with other queries, or that were
+	 * searched in several parts of an index. A word that is already in this plan
+	 * gets the expansions and postings of the other plan added to it instead of
+	 * being listed again, and is only missing if none of the plans found it.
+	 *
+	 * @param other the resolved plan of some of the query words
+	 */
+	public void add(QueryPlan other) {
+		// a phrase can repeat a word, so each term of this plan is merged with one term at most
+		ArrayList<Term> unmerged = new ArrayList<Term>(inOrder);
+		for (var term : other.inOrder) {
+			Term same = null;
+			for (var candidate : unmerged) {
+				if (candidate.word.equals(term.word)) {
+					same = candidate;
+					break;
+				}
+			}
+			if (same == null) {
+				same = new Term(term.word);
+				inOrder.add(same);
+			} else {
+				unmerged.remove(same);
+			}
+			for (int i = 0; i < term.keywords.size(); i++) {
+				same.add(term.keywords.get(i), term.postings.get(i));
+			}
+		}
+
+		terms.clear();
+		missing.clear();
+		for (var term : inOrder) {
+			if (term.estimate > 0) {
+				terms.add(term);
+			} else if (!missing.contains(term.word)) {
+				missing.add(term.word);
+			}
+		}
+		visited += other.visited;
+		partial |= other.partial;
+		terms.sort(Comparator.comparingInt(Term::getEstimate));
+	}
+
+	/**
+	 * @return the found query words, fewest locations first
+	 */
+	public List<Term> terms() {
+		return terms;
+	}
+
+	/**
+	 * @return every query word in the original order, including missing ones
+	 */
+	public List<Term> inOrder() {
+		return inOrder;
+	}
+
+	/**
+	 * @return the query words that are not in the index
+	 */
+	public List<String> missing() {
+		return missing;
+	}
+
+	/**
+	 * @return the query words
+	 */
+	public List<String> words() {
+		return words;
+	}
+
+	/**
+	 * @return whether the words are matched exactly
+	 */
+	public boolean isExact() {
+		return exact;
+	}
+
+	/**
+	 * @return true if none of the query words are in the index
+	 */
+	public boolean isEmpty() {
+		return terms.isEmpty();
+	}
+
+	/**
+	 * Gives the search of this plan a deadline.
+	 *
+	 * @param deadline the deadline, from {@link System#nanoTime()}
+	 * @return this plan
+	 */
+	public QueryPlan setDeadline(long deadline) {
+		this.hasDeadline = true;
+		this.deadline = deadline;
+		return this;
+	}
+
+	/**
+	 * Returns a new plan for the same words with the same deadline, for searching
+	 * one part of an index. Add it back with {@link #add(QueryPlan)}.
+	 *
+	 * @return the unresolved plan
+	 */
+	public QueryPlan child() {
+		QueryPlan child = new QueryPlan(words, exact);
+		child.hasDeadline = hasDeadline;
+		child.deadline = deadline;
+		return child;
+	}
+
+	/**
+	 * Checks whether the deadline passed, and marks the plan as partial if it did.
+	 *
+	 * @return true if the search should stop
+	 */
+	public boolean expired() {
+		if (!partial && hasDeadline && System.nanoTime() - deadline >= 0) {
+			partial = true;
+		}
+		return partial;
+	}
+
+	/**
+	 * Checks the deadline every {@link #CHECK_EVERY} steps of a loop, so the clock
+	 * is not read on every step.
+	 *
+	 * @param step the number of steps the loop took so far
+	 * @return true if the search should stop
+	 */
+	public boolean expired(int step) {
+		return partial || (hasDeadline && step % CHECK_EVERY == 0 && expired());
+	}
+
+	/**
+	 * Returns how long the search has left, for passing the deadline on to a search
+	 * in another process.
+	 *
+	 * @return the milliseconds until the deadline, at least 1, or 0 if there is no
+	 *         deadline
+	 */
+	public long remainingMillis() {
+		if (!hasDeadline) {
+			return 0;
+		}
+		return Math.max(1, (deadline - System.nanoTime()) / 1_000_000);
+	}
+
+	/**
+	 * Marks the plan as partial, for a search in another process that hit the
+	 * deadline.
+	 */
+	public void markPartial() {
+		partial = true;
+	}
+
+	/**
+	 * @return true if the search stopped at the deadline and its results are
+	 *         missing some locations or counts
+	 */
+	public boolean isPartial() {
+		return partial;
+	}
+
+	/**
+	 * Records postings that a search visited.
+	 *
+	 * @param postings the number of postings visited
+	 */
+	public void visit(int postings) {
+		visited += postings;
+	}
+
+	/**
+	 * @return the number of postings the search visited
+	 */
+	public int getVisited() {
+		return visited;
+	}
+
+	/**
+	 * @return the number of postings the plan expected to visit
+	 */
+	public int getEstimated() {
+		int estimated = 0;
+		for (var term : terms) {
+			estimated += term.estimate;
+		}
+		return estimated;
+	}
+}
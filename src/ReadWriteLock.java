@@ -1,72 +1,426 @@
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.TimeUnit;
+
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 /**
- * A simple custom lock that allows simultaneously read operations, but
- * disallows simultaneously write and read/write operations.
+ * A custom lock that allows simultaneously read operations, but disallows
+ * simultaneously write and read/write operations.
+ *
+ * Both locks are reentrant: a thread that holds the write lock may take the
+ * write or read lock again, and a thread that holds the read lock may take the
+ * read lock again, as long as it unlocks as many times as it locked. A thread
+ * that only holds the read lock cannot upgrade to the write lock, since two
+ * readers doing so at once would wait on each other forever.
+ *
+ * With writer preference, new readers wait while a writer is waiting, so a
+ * steady stream of readers cannot keep a writer out forever. Without it, the
+ * first thread that can acquire the appropriate lock is allowed to continue.
+ *
+ * Very short lookups can skip the lock with an optimistic read, in the style of
+ * {@link java.util.concurrent.locks.StampedLock}: take a stamp with
+ * {@link #tryOptimisticRead()}, do the lookup, and only trust the result if
+ * {@link #validate(long)} says no writer got in the way. A lookup that races a
+ * writer may see data in the middle of being changed, so it must not act on
+ * what it read before validating, and must expect runtime exceptions.
  *
- * Does not implement any form or priority to read or write operations. The
- * first thread that acquires the appropriate lock should be allowed to
- * continue.
+ * The lock counts acquisitions, waits, time spent waiting and the most threads
+ * ever waiting at once, to see how contended it is.
  */
 public class ReadWriteLock {
 	public static final Logger log = LogManager.getLogger(Driver.class);
+
+	private final boolean preferWriters;
+
+	/** The number of read holds of the current thread. */
+	private final ThreadLocal<int[]> holds = ThreadLocal.withInitial(() -> new int[1]);
+
+	/** The number of threads holding the read lock. */
 	private int readers;
-	private int writers;
+
+	/** The thread holding the write lock, and how many times it holds it. */
+	private Thread writer;
+	private int writes;
+
+	private int waiting;
+	private int waitingWriters;
+
+	/** Even while no thread holds the write lock, and odd while one does. */
+	private volatile long version;
+
+	private long readAcquisitions;
+	private long writeAcquisitions;
+	private long readWaits;
+	private long writeWaits;
+	private long readWaitNanos;
+	private long writeWaitNanos;
+	private int maxWaiting;
 
 	/**
-	 * Initializes a multi-reader single-writer lock.
+	 * Initializes a multi-reader single-writer lock that prefers writers.
 	 */
 	public ReadWriteLock() {
-		readers = 0;
-		writers = 0;
+		this(true);
+	}
+
+	/**
+	 * Initializes a multi-reader single-writer lock.
+	 *
+	 * @param preferWriters whether new readers wait while a writer is waiting
+	 */
+	public ReadWriteLock(boolean preferWriters) {
+		this.preferWriters = preferWriters;
+		this.readers = 0;
+		this.writer = null;
+		this.writes = 0;
 	}
 
 	/**
 	 * Will wait until there are no active writers in the system, and then will
-	 * increase the number of active readers.
-	 */
-	public synchronized void lockReadOnly() {
-		while (writers > 0) {
-			try {
-				this.wait();
-			} catch (InterruptedException e) {
-				log.debug("This.Wait had an exception", e);
-			}
+	 * increase the number of active readers. If the thread is interrupted while
+	 * waiting, it keeps waiting and is interrupted again once it has the lock.
+	 */
+	public void lockReadOnly() {
+		try {
+			acquire(false, false, -1);
+		} catch (InterruptedException e) { // never thrown when not interruptible
+			throw new IllegalStateException(e);
 		}
-		readers++;
+	}
+
+	/**
+	 * Waits for the read lock like {@link #lockReadOnly()}, but stops waiting if
+	 * the thread is interrupted.
+	 *
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	public void lockReadOnlyInterruptibly() throws InterruptedException {
+		acquire(false, true, -1);
+	}
+
+	/**
+	 * Waits for the read lock for at most the given time.
+	 *
+	 * @param timeout the longest time to wait
+	 * @param unit    the unit of the timeout
+	 * @return true if the lock was acquired, false if the time ran out
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	public boolean tryLockReadOnly(long timeout, TimeUnit unit) throws InterruptedException {
+		return acquire(false, true, Math.max(0, unit.toNanos(timeout)));
 	}
 
 	/**
 	 * Will decrease the number of active readers, and notify any waiting threads if
 	 * necessary.
+	 *
+	 * @throws IllegalMonitorStateException if the thread does not hold the read
+	 *                                      lock
 	 */
 	public synchronized void unlockReadOnly() {
-		readers--;
-		this.notifyAll();
+		int[] holds = this.holds.get();
+		if (holds[0] == 0) {
+			throw new IllegalMonitorStateException(Thread.currentThread().getName() + " does not hold the read lock");
+		}
+		holds[0]--;
+		if (holds[0] == 0) {
+			readers--;
+			if (readers == 0) {
+				this.notifyAll();
+			}
+		}
 	}
 
 	/**
 	 * Will wait until there are no active readers or writers in the system, and
-	 * then will increase the number of active writers.
-	 */
-	public synchronized void lockReadWrite() {
-		while (writers > 0 || readers > 0) {
-			try {
-				this.wait();
-			} catch (InterruptedException e) {
-				log.debug("This.Wait had an exception", e);
-			}
+	 * then will increase the number of active writers. If the thread is
+	 * interrupted while waiting, it keeps waiting and is interrupted again once it
+	 * has the lock.
+	 *
+	 * @throws IllegalStateException if the thread only holds the read lock
+	 */
+	public void lockReadWrite() {
+		try {
+			acquire(true, false, -1);
+		} catch (InterruptedException e) { // never thrown when not interruptible
+			throw new IllegalStateException(e);
 		}
-		writers++;
+	}
+
+	/**
+	 * Waits for the write lock like {@link #lockReadWrite()}, but stops waiting if
+	 * the thread is interrupted.
+	 *
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	public void lockReadWriteInterruptibly() throws InterruptedException {
+		acquire(true, true, -1);
+	}
+
+	/**
+	 * Waits for the write lock for at most the given time.
+	 *
+	 * @param timeout the longest time to wait
+	 * @param unit    the unit of the timeout
+	 * @return true if the lock was acquired, false if the time ran out
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	public boolean tryLockReadWrite(long timeout, TimeUnit unit) throws InterruptedException {
+		return acquire(true, true, Math.max(0, unit.toNanos(timeout)));
 	}
 
 	/**
 	 * Will decrease the number of active writers, and notify any waiting threads if
 	 * necessary.
+	 *
+	 * @throws IllegalMonitorStateException if the thread does not hold the write
+	 *                                      lock
 	 */
 	public synchronized void unlockReadWrite() {
-		writers--;
-		this.notifyAll();
+		if (writer != Thread.currentThread()) {
+			throw new IllegalMonitorStateException(Thread.currentThread().getName() + " does not hold the write lock");
+		}
+		writes--;
+		if (writes == 0) {
+			writer = null;
+			version++;
+			this.notifyAll();
+		}
+	}
+
+	/**
+	 * Returns a stamp for an optimistic read, without taking any lock.
+	 *
+	 * @return the stamp to validate after reading, or -1 if a thread holds the
+	 *         write lock and the read should take the read lock instead
+	 */
+	public long tryOptimisticRead() {
+		long stamp = version;
+		return (stamp & 1) == 0 ? stamp : -1;
+	}
+
+	/**
+	 * Returns whether no thread took the write lock since the stamp was returned,
+	 * so everything read since then is consistent.
+	 *
+	 * @param stamp the stamp from {@link #tryOptimisticRead()}
+	 * @return true if the optimistic read can be trusted
+	 */
+	public boolean validate(long stamp) {
+		VarHandle.acquireFence(); // the reads before this must not move after it
+		if (stamp >= 0 && version == stamp) {
+			return true;
+		}
+		Metrics.increment("lock.optimistic.failed");
+		return false;
+	}
+
+	/**
+	 * Returns whether the thread may take the lock right now.
+	 *
+	 * @param write  whether the thread wants the write lock
+	 * @param thread the thread
+	 * @param holds  the read holds of the thread
+	 * @return true if the thread may take the lock
+	 */
+	private boolean available(boolean write, Thread thread, int holds) {
+		if (writer == thread) {
+			return true;
+		}
+		if (write) {
+			return writer == null && readers == 0;
+		}
+		return holds > 0 || (writer == null && !(preferWriters && waitingWriters > 0));
+	}
+
+	/**
+	 * Waits until the lock is available and takes it.
+	 *
+	 * @param write         whether to take the write lock
+	 * @param interruptible whether to stop waiting if the thread is interrupted
+	 * @param timeout       the longest time to wait in nanoseconds, or -1 to wait
+	 *                      forever
+	 * @return true if the lock was taken, false if the time ran out
+	 * @throws InterruptedException if the thread is interrupted while waiting and
+	 *                              the wait is interruptible
+	 */
+	private synchronized boolean acquire(boolean write, boolean interruptible, long timeout)
+			throws InterruptedException {
+		Thread thread = Thread.currentThread();
+		int[] holds = this.holds.get();
+		if (write && writer != thread && holds[0] > 0) {
+			throw new IllegalStateException(thread.getName() + " cannot upgrade a read lock to the write lock");
+		}
+		if (available(write, thread, holds[0])) {
+			hold(write, thread, holds);
+			return true;
+		}
+
+		long start = System.nanoTime();
+		SearchEvents.LockWait event = new SearchEvents.LockWait();
+		event.begin();
+		boolean interrupted = false;
+		waiting++;
+		maxWaiting = Math.max(maxWaiting, waiting);
+		if (write) {
+			waitingWriters++;
+		}
+
+		try {
+			while (!available(write, thread, holds[0])) {
+				try {
+					if (timeout < 0) {
+						this.wait();
+					} else {
+						long remaining = timeout - (System.nanoTime() - start);
+						if (remaining <= 0) {
+							return false;
+						}
+						TimeUnit.NANOSECONDS.timedWait(this, remaining);
+					}
+				} catch (InterruptedException e) {
+					if (interruptible) {
+						throw e;
+					}
+					log.debug("Interrupted while waiting for the lock", e);
+					interrupted = true;
+				}
+			}
+			hold(write, thread, holds);
+			return true;
+		} finally {
+			waiting--;
+			if (write) {
+				waitingWriters--;
+				this.notifyAll(); // readers held back by this writer may go ahead if it gave up
+			}
+
+			long waited = System.nanoTime() - start;
+			if (write) {
+				writeWaits++;
+				writeWaitNanos += waited;
+			} else {
+				readWaits++;
+				readWaitNanos += waited;
+			}
+			Metrics.record(write ? "lock.write.wait.nanos" : "lock.read.wait.nanos", waited);
+			event.end();
+			if (event.shouldCommit()) {
+				event.mode = write ? "write" : "read";
+				event.commit();
+			}
+
+			if (interrupted) {
+				thread.interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Records that the thread took the lock.
+	 *
+	 * @param write  whether the thread took the write lock
+	 * @param thread the thread
+	 * @param holds  the read holds of the thread
+	 */
+	private void hold(boolean write, Thread thread, int[] holds) {
+		if (write) {
+			if (writes == 0) {
+				version++;
+				VarHandle.storeStoreFence(); // the writes after this must not move before it
+			}
+			writer = thread;
+			writes++;
+			writeAcquisitions++;
+			Metrics.increment("lock.write.acquired");
+		} else {
+			if (holds[0] == 0) {
+				readers++;
+			}
+			holds[0]++;
+			readAcquisitions++;
+			Metrics.increment("lock.read.acquired");
+		}
+	}
+
+	/**
+	 * @return whether the current thread holds the write lock
+	 */
+	public synchronized boolean isWriteLockedByCurrentThread() {
+		return writer == Thread.currentThread();
+	}
+
+	/**
+	 * @return the number of threads holding the read lock
+	 */
+	public synchronized int getReaders() {
+		return readers;
+	}
+
+	/**
+	 * @return the number of threads waiting for either lock
+	 */
+	public synchronized int getQueueLength() {
+		return waiting;
+	}
+
+	/**
+	 * @return the most threads that have ever waited for either lock at once
+	 */
+	public synchronized int getMaxQueueLength() {
+		return maxWaiting;
+	}
+
+	/**
+	 * @return the number of times the read lock was taken, including reentrant
+	 *         holds
+	 */
+	public synchronized long getReadAcquisitions() {
+		return readAcquisitions;
+	}
+
+	/**
+	 * @return the number of times the write lock was taken, including reentrant
+	 *         holds
+	 */
+	public synchronized long getWriteAcquisitions() {
+		return writeAcquisitions;
+	}
+
+	/**
+	 * @return the number of times a thread had to wait for the read lock
+	 */
+	public synchronized long getReadWaits() {
+		return readWaits;
+	}
+
+	/**
+	 * @return the number of times a thread had to wait for the write lock
+	 */
+	public synchronized long getWriteWaits() {
+		return writeWaits;
+	}
+
+	/**
+	 * @return the total time threads waited for the read lock in nanoseconds
+	 */
+	public synchronized long getReadWaitNanos() {
+		return readWaitNanos;
+	}
+
+	/**
+	 * @return the total time threads waited for the write lock in nanoseconds
+	 */
+	public synchronized long getWriteWaitNanos() {
+		return writeWaitNanos;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("ReadWriteLock[readers=%d, writer=%s, waiting=%d, maxWaiting=%d, "
+				+ "reads=%d (%d waited %d ms), writes=%d (%d waited %d ms)]", readers,
+				writer == null ? "none" : writer.getName(), waiting, maxWaiting, readAcquisitions, readWaits,
+				readWaitNanos / 1_000_000, writeAcquisitions, writeWaits, writeWaitNanos / 1_000_000);
 	}
 }
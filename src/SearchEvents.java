@@ -0,0 +1,129 @@
+import java.util.Collection;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Java Flight Recorder events for the phases of the search engine, so building,
+ * queueing, locking and searching can be lined up with garbage collection and
+ * thread activity in JDK Mission Control. Start a recording with
+ * {@code -XX:StartFlightRecording}. Events cost almost nothing when no recording
+ * is running.
+ */
+public class SearchEvents {
+
+	/**
+	 * A text file that was read, stemmed and added to the index.
+	 */
+	@Name("searchengine.FileIndexed")
+	@Label("File Indexed")
+	@Category({ "Search Engine", "Build" })
+	@StackTrace(false)
+	public static class FileIndexed extends Event {
+		@Label("Path")
+		public String path;
+
+		@Label("Bytes")
+		@DataAmount
+		public long bytes;
+
+		@Label("Tokens")
+		public int tokens;
+	}
+
+	/**
+	 * A task added to a work queue.
+	 */
+	@Name("searchengine.TaskQueued")
+	@Label("Task Queued")
+	@Category({ "Search Engine", "Work Queue" })
+	@StackTrace(false)
+	public static class TaskQueued extends Event {
+		@Label("Queue Depth")
+		@Description("The number of tasks waiting in the queue, including this one")
+		public int depth;
+	}
+
+	/**
+	 * A task run by a work queue worker, from when it started to when it
+	 * finished.
+	 */
+	@Name("searchengine.TaskRun")
+	@Label("Task Run")
+	@Category({ "Search Engine", "Work Queue" })
+	@StackTrace(false)
+	public static class TaskRun extends Event {
+		@Label("Task")
+		public String task;
+
+		@Label("Wait Time")
+		@Description("How long the task waited in the queue before a worker started it")
+		@Timespan(Timespan.NANOSECONDS)
+		public long waitTime;
+	}
+
+	/**
+	 * A thread that had to wait for a {@link ReadWriteLock}.
+	 */
+	@Name("searchengine.LockWait")
+	@Label("Lock Wait")
+	@Category({ "Search Engine", "Lock" })
+	public static class LockWait extends Event {
+		@Label("Mode")
+		@Description("Whether the thread waited to read or to write")
+		public String mode;
+	}
+
+	/**
+	 * A single query searched by a query parser or search minion.
+	 */
+	@Name("searchengine.QuerySearched")
+	@Label("Query Searched")
+	@Category({ "Search Engine", "Search" })
+	@StackTrace(false)
+	public static class QuerySearched extends Event {
+		@Label("Query")
+		public String query;
+
+		@Label("Exact")
+		public boolean exact;
+
+		@Label("Terms Expanded")
+		@Description("The number of words in the index that matched the query words")
+		public int expanded;
+
+		@Label("Postings Visited")
+		public int visited;
+
+		@Label("Results")
+		public int results;
+	}
+
+	/**
+	 * Fills in and commits a query event, if a recording wants it.
+	 *
+	 * @param event   the event that was begun before searching
+	 * @param query   the query
+	 * @param plan    the plan of the query after searching
+	 * @param results the search results, or null if there are none
+	 */
+	public static void searched(QuerySearched event, String query, QueryPlan plan, Collection<?> results) {
+		event.end();
+		if (event.shouldCommit()) {
+			event.query = query;
+			event.exact = plan.isExact();
+			for (var term : plan.terms()) {
+				event.expanded += term.getMatches();
+			}
+			event.visited = plan.getVisited();
+			event.results = results == null ? 0 : results.size();
+			event.commit();
+		}
+	}
+}
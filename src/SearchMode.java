@@ -0,0 +1,29 @@
+/**
+ * The ways the query words of a single query can be combined when searching.
+ */
+public enum SearchMode {
+	/** Results contain any of the query words. */
+	OR,
+
+	/** Results contain every one of the query words. */
+	AND,
+
+	/** Results contain the query words next to each other in order. */
+	PHRASE;
+
+	/**
+	 * Picks the search mode based on the command-line flags.
+	 *
+	 * @param map the parsed command-line arguments
+	 * @return the search mode to use
+	 */
+	public static SearchMode fromFlags(ArgumentMap map) {
+		if (map.hasFlag("-phrase")) {
+			return PHRASE;
+		}
+		if (map.hasFlag("-and")) {
+			return AND;
+		}
+		return OR;
+	}
+}
@@ -27,6 +27,13 @@ public class SearchResult implements Comparable<SearchResult> {
 		return count;
 	}
 
+	/**
+	 * @return the total number of words at the location
+	 */
+	public int getWordCount() {
+		return fileWordCount;
+	}
+
 	/**
 	 * @return score
 	 */
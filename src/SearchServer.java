@@ -0,0 +1,378 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.Semaphore;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import opennlp.tools.stemmer.snowball.SnowballStemmer;
+
+/**
+ * Serves searches of an index that is built once over a local HTTP endpoint,
+ * so every query does not need a new JVM and a new build. A query is sent as
+ * {@code GET /search?q=...}, optionally with {@code exact}, {@code mode=and} or
+ * {@code mode=phrase}, and {@code top=N}, and the results are returned in the
+ * same JSON as the {@code -results} file of a single query.
+ *
+ * Requests are handled concurrently by the minions of a work queue, and each
+ * one searches a pinned view of the index. Responses always have a known length,
+ * so clients can keep their connections open between requests. The JVM should
+ * be started with {@code -Dsun.net.httpserver.nodelay=true}, which
+ * {@link Driver} sets for {@code -server}, or small responses wait on delayed
+ * acknowledgements for about 40 ms. It is only read when the first server is
+ * created, so it cannot be set from here.
+ *
+ * Only a limited number of requests are admitted at once, counting the ones
+ * waiting for a minion. Anything over the limit is turned away right away with
+ * a 503, so a burst of slow queries cannot pile up latency for everyone. Every
+ * query can also have a deadline, which the query may override with
+ * {@code deadline=MILLIS}. A query that hits it returns what it found so far,
+ * with the {@code X-Partial-Results} header set.
+ *
+ * The server also answers {@code GET /shard?words=...} for a
+ * {@link ShardedIndex} that spreads each search over several servers, each with
+ * its own part of the files. The words are already stemmed, and the results are
+ * sent as plain lines with the counts and word totals needed to merge them.
+ */
+public class SearchServer {
+	public static final Logger log = LogManager.getLogger(Driver.class);
+
+	/** The default port to listen on. */
+	public static final int DEFAULT_PORT = 8080;
+
+	private final SearchableIndex index;
+	private final WorkQueue minions;
+	private final Semaphore admitted;
+	private final int limit;
+	private long deadline = 0;
+	private HttpServer server;
+
+	/** Set on the thread that turns a request away, for the handler to see. */
+	private final ThreadLocal<Boolean> rejecting = ThreadLocal.withInitial(() -> false);
+
+	/**
+	 * Initializes the server, admitting twice as many requests as there are
+	 * threads.
+	 *
+	 * @param index   the index to search
+	 * @param threads the number of requests to handle at once
+	 */
+	public SearchServer(SearchableIndex index, int threads) {
+		this(index, threads, threads * 2);
+	}
+
+	/**
+	 * Initializes the server.
+	 *
+	 * @param index   the index to search
+	 * @param threads the number of requests to handle at once
+	 * @param limit   the number of requests that can be handled or waiting at
+	 *                once before more are turned away
+	 */
+	public SearchServer(SearchableIndex index, int threads, int limit) {
+		this.index = index;
+		this.minions = new WorkQueue(threads);
+		this.limit = Math.max(1, limit);
+		this.admitted = new Semaphore(this.limit);
+	}
+
+	/**
+	 * Gives every query a deadline.
+	 *
+	 * @param millis how long each query may search in milliseconds, or 0 for no
+	 *               limit
+	 */
+	public void setDeadline(long millis) {
+		this.deadline = Math.max(0, millis);
+	}
+
+	/**
+	 * Starts listening on the loopback address. Requests are handled in the
+	 * background until the server is stopped.
+	 *
+	 * @param port the port to listen on, or 0 for any free port
+	 * @return the port the server listens on
+	 * @throws IOException if unable to listen on the port
+	 */
+	public int start(int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/search", new SearchHandler());
+		server.createContext("/shard", new ShardHandler());
+		server.setExecutor(this::admit);
+		server.start();
+		log.info("Serving searches on http://localhost:{}/search", server.getAddress().getPort());
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * Hands a request to the minions if it is admitted. Otherwise the request is
+	 * answered right away on the thread that accepted it, which only sends a 503.
+	 *
+	 * @param exchange the work of handling the request
+	 */
+	private void admit(Runnable exchange) {
+		if (admitted.tryAcquire()) {
+			minions.execute(() -> {
+				try {
+					exchange.run();
+				} finally {
+					admitted.release();
+				}
+			});
+		} else {
+			Metrics.increment("server.rejected");
+			rejecting.set(true);
+			try {
+				exchange.run();
+			} finally {
+				rejecting.set(false);
+			}
+		}
+	}
+
+	/**
+	 * Stops listening, gives requests that are being handled a second to finish,
+	 * and stops the minions.
+	 */
+	public void stop() {
+		if (server != null) {
+			server.stop(1);
+		}
+		minions.finish();
+		log.info("Stopped serving searches");
+	}
+
+	/**
+	 * Parses the parameters of a query string.
+	 *
+	 * @param query the raw query string of the request, or null
+	 * @return a mapping of parameter names to values, with an empty value for a
+	 *         parameter without one
+	 */
+	public static HashMap<String, String> parameters(String query) {
+		HashMap<String, String> parameters = new HashMap<String, String>();
+		if (query == null) {
+			return parameters;
+		}
+		for (var pair : query.split("&")) {
+			int equals = pair.indexOf('=');
+			String name = equals < 0 ? pair : pair.substring(0, equals);
+			String value = equals < 0 ? "" : pair.substring(equals + 1);
+			parameters.put(URLDecoder.decode(name, StandardCharsets.UTF_8),
+					URLDecoder.decode(value, StandardCharsets.UTF_8));
+		}
+		return parameters;
+	}
+
+	/**
+	 * Searches the index for a single query, the same way
+	 * {@link MultiThreadedQueryParser} searches each query of a file.
+	 *
+	 * @param line     the query as typed
+	 * @param exact    whether to match query words exactly or as prefixes
+	 * @param mode     how the words of the query are combined
+	 * @param top      the number of results to keep, or 0 to keep every result
+	 * @param deadline how long the query may search in milliseconds, or 0 for no
+	 *                 limit
+	 * @param results  where to add the sorted results of the query, keyed by the
+	 *                 cleaned query
+	 * @return the plan of the query after searching, or null if the query has no
+	 *         words
+	 */
+	public QueryPlan search(String line, boolean exact, SearchMode mode, int top, long deadline,
+			TreeMap<String, ArrayList<SearchResult>> results) {
+		SnowballStemmer stemmer = new SnowballStemmer(SnowballStemmer.ALGORITHM.ENGLISH);
+		Collection<String> words = MultiThreadedQueryParser.stem(line, mode, stemmer);
+		if (words.isEmpty()) {
+			return null;
+		}
+
+		QueryPlan plan = MultiThreadedQueryParser.newPlan(words, exact, mode);
+		if (deadline > 0) {
+			plan.setDeadline(System.nanoTime() + deadline * 1_000_000);
+		}
+		results.put(String.join(" ", words), search(plan, mode, top));
+		return plan;
+	}
+
+	/**
+	 * Searches a pinned view of the index for the already stemmed words of a plan.
+	 *
+	 * @param plan the plan of the words to look for, in order for a phrase
+	 * @param mode how the words are combined
+	 * @param top  the number of results to keep, or 0 to keep every result
+	 * @return the sorted search results
+	 */
+	public ArrayList<SearchResult> search(QueryPlan plan, SearchMode mode, int top) {
+		long start = Metrics.start();
+		SearchableIndex view = index.pin();
+		try {
+			ArrayList<SearchResult> results = MultiThreadedQueryParser.search(view, plan, mode, top);
+			Metrics.query(plan, start);
+			return results;
+		} finally {
+			view.unpin();
+		}
+	}
+
+	/**
+	 * Sends a whole response with its length, so the connection can be reused.
+	 *
+	 * @param exchange the request to answer
+	 * @param status   the status code
+	 * @param type     the content type
+	 * @param body     the body of the response
+	 * @return the status code
+	 * @throws IOException if unable to send the response
+	 */
+	private static int send(HttpExchange exchange, int status, String type, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", type + "; charset=utf-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream response = exchange.getResponseBody()) {
+			response.write(bytes);
+		}
+		return status;
+	}
+
+	/**
+	 * Records how long a request took, and logs it at debug level so a busy server
+	 * does not write a line for every request.
+	 *
+	 * @param exchange the request that was answered
+	 * @param status   the status code it was answered with
+	 * @param start    when the request was received, from {@link System#nanoTime()}
+	 */
+	private static void logRequest(HttpExchange exchange, int status, long start) {
+		long nanos = System.nanoTime() - start;
+		Metrics.record("server.request.nanos", nanos);
+		log.debug("{} {} {} in {} ms", exchange.getRequestMethod(), exchange.getRequestURI(), status,
+				nanos / 1_000_000.0);
+	}
+
+	/**
+	 * Class for answering a single search request
+	 */
+	private class SearchHandler implements HttpHandler {
+
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			long start = System.nanoTime();
+			int status;
+			try (InputStream request = exchange.getRequestBody()) {
+				request.readAllBytes(); // the connection can only be kept open once the body was read
+
+				if (rejecting.get()) {
+					exchange.getResponseHeaders().set("Retry-After", "1");
+					status = send(exchange, 503, "text/plain", "More than " + limit + " searches at once");
+				} else if (!exchange.getRequestMethod().equals("GET")) {
+					status = send(exchange, 405, "text/plain", "Only GET is supported");
+				} else {
+					var parameters = parameters(exchange.getRequestURI().getRawQuery());
+					String line = parameters.get("q");
+					if (line == null) {
+						status = send(exchange, 400, "text/plain", "Missing the query parameter q");
+					} else {
+						SearchMode mode = SearchMode.OR;
+						if (parameters.containsKey("mode")) {
+							mode = SearchMode.valueOf(parameters.get("mode").toUpperCase());
+						}
+						int top = Integer.parseInt(parameters.getOrDefault("top", "0"));
+						long millis = parameters.containsKey("deadline") ? Long.parseLong(parameters.get("deadline"))
+								: deadline;
+
+						TreeMap<String, ArrayList<SearchResult>> results = new TreeMap<String, ArrayList<SearchResult>>();
+						QueryPlan plan = search(line, parameters.containsKey("exact"), mode, top, millis, results);
+						if (plan != null && plan.isPartial()) {
+							exchange.getResponseHeaders().set("X-Partial-Results", "true");
+						}
+						StringWriter json = new StringWriter();
+						TreeJSONWriter.asSearchResult(results, json, 0);
+						status = send(exchange, 200, "application/json", json.toString());
+					}
+				}
+			} catch (IllegalArgumentException e) { // unknown mode or a top that is not a number
+				status = send(exchange, 400, "text/plain", "Bad parameter: " + e.getMessage());
+			} catch (UncheckedIOException e) { // a shard of a sharded index failed
+				status = send(exchange, 502, "text/plain", e.getCause().getMessage());
+			} finally {
+				exchange.close();
+			}
+
+			logRequest(exchange, status, start);
+		}
+	}
+
+	/**
+	 * Class for answering a single search of the already stemmed words of a query
+	 * from a {@link ShardedIndex}. Every result is sent as a line with its
+	 * location, count and total word count separated by tabs, and the number of
+	 * postings visited is sent in the {@code X-Visited} header.
+	 */
+	private class ShardHandler implements HttpHandler {
+
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			long start = System.nanoTime();
+			int status;
+			try (InputStream request = exchange.getRequestBody()) {
+				request.readAllBytes();
+
+				if (rejecting.get()) {
+					exchange.getResponseHeaders().set("Retry-After", "1");
+					status = send(exchange, 503, "text/plain", "More than " + limit + " searches at once");
+				} else if (!exchange.getRequestMethod().equals("GET")) {
+					status = send(exchange, 405, "text/plain", "Only GET is supported");
+				} else {
+					var parameters = parameters(exchange.getRequestURI().getRawQuery());
+					String words = parameters.get("words");
+					if (words == null || words.isBlank()) {
+						status = send(exchange, 400, "text/plain", "Missing the query parameter words");
+					} else {
+						SearchMode mode = SearchMode.valueOf(parameters.getOrDefault("mode", "or").toUpperCase());
+						int top = Integer.parseInt(parameters.getOrDefault("top", "0"));
+						long millis = parameters.containsKey("deadline") ? Long.parseLong(parameters.get("deadline"))
+								: deadline;
+
+						QueryPlan plan = new QueryPlan(List.of(words.split(" ")), parameters.containsKey("exact"));
+						if (millis > 0) {
+							plan.setDeadline(System.nanoTime() + millis * 1_000_000);
+						}
+						StringBuilder body = new StringBuilder();
+						for (var result : search(plan, mode, top)) {
+							body.append(result.getLocation()).append('\t').append(result.getCount()).append('\t')
+									.append(result.getWordCount()).append('\n');
+						}
+						exchange.getResponseHeaders().set("X-Visited", Integer.toString(plan.getVisited()));
+						if (plan.isPartial()) {
+							exchange.getResponseHeaders().set("X-Partial-Results", "true");
+						}
+						status = send(exchange, 200, "text/plain", body.toString());
+					}
+				}
+			} catch (IllegalArgumentException e) {
+				status = send(exchange, 400, "text/plain", "Bad parameter: " + e.getMessage());
+			} finally {
+				exchange.close();
+			}
+
+			logRequest(exchange, status, start);
+		}
+	}
+}
@@ -0,0 +1,72 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The searches {@link MultiThreadedQueryParser} runs on an index that may be
+ * searched by several threads at once.
+ */
+public interface SearchableIndex {
+
+	/**
+	 * Returns a view of the index that stays the same until it is unpinned, so a
+	 * whole batch of searches sees the same words and locations. Indexes that can
+	 * only lock each search on its own return themselves.
+	 *
+	 * @return the pinned view to search
+	 */
+	public default SearchableIndex pin() {
+		return this;
+	}
+
+	/**
+	 * Lets go of a view returned by {@link #pin()}.
+	 */
+	public default void unpin() {
+	}
+
+	/**
+	 * Returns the number of times the query words appear at each location they
+	 * were found in.
+	 *
+	 * @param plan the plan of the words we are looking for
+	 * @return a mapping of locations to counts
+	 */
+	public HashMap<String, Integer> counts(QueryPlan plan);
+
+	/**
+	 * Builds the sorted search results of a query from the counts of each of its
+	 * words, as returned by {@link #counts(QueryPlan)}.
+	 *
+	 * @param allCounts the counts of every word in the query
+	 * @return the sorted search results
+	 */
+	public ArrayList<SearchResult> results(List<HashMap<String, Integer>> allCounts);
+
+	/**
+	 * Does an and search, only keeping the locations that contain every one of the
+	 * query words
+	 *
+	 * @param plan the plan of the words to look for
+	 * @return the sorted search results
+	 */
+	public ArrayList<SearchResult> andSearch(QueryPlan plan);
+
+	/**
+	 * Does a phrase search, only keeping the locations that contain the query words
+	 * next to each other in order
+	 *
+	 * @param plan the plan of the exact words to look for in order
+	 * @return the sorted search results
+	 */
+	public ArrayList<SearchResult> phraseSearch(QueryPlan plan);
+
+	/**
+	 * Does an exact or partial search, only keeping the best results.
+	 *
+	 * @param plan the plan of the words to look for
+	 * @param top  the number of results to keep
+	 * @return the sorted best search results
+	 */
+	public ArrayList<SearchResult> topSearch(QueryPlan plan, int top);
+}
@@ -0,0 +1,640 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * An index for continuous ingestion, built like a log-structured merge tree.
+ * New files are added to a small mutable buffer, which is flushed into an
+ * immutable segment once it holds enough locations or when it is refreshed.
+ * Searches only read the published version of the segment list, so they never
+ * wait for a writer, and see new files at each flush.
+ *
+ * Every location lives in exactly one segment. Adding a location again or
+ * deleting it marks the old copy as deleted instead of changing the segment,
+ * and searches leave deleted locations out. A background minion merges the
+ * smallest segments together once there are too many of them, and rewrites
+ * segments that are mostly deleted, dropping the deleted locations for good.
+ *
+ * Every change publishes a new version of the segment list instead of changing
+ * the current one. A reader pins the version it starts on with {@link #pin()}
+ * and sees exactly that version, including the word counts of every location,
+ * until it unpins it. A replaced version lets go of its segments once the last
+ * reader unpins it.
+ */
+public class SegmentedIndex implements SearchableIndex {
+	public static final Logger log = LogManager.getLogger(Driver.class);
+
+	/** The default number of locations the buffer holds before it is flushed. */
+	public static final int DEFAULT_FLUSH = 100;
+
+	/** The number of segments there can be before the smallest are merged. */
+	public static final int MERGE_FACTOR = 8;
+
+	/**
+	 * An immutable part of the index and the locations deleted from it since it
+	 * was written. Deleting a location makes a new segment with the same id.
+	 */
+	private static class Segment {
+		private final long id;
+		private final InvertedIndex index;
+		private final Set<String> deleted;
+
+		public Segment(long id, InvertedIndex index, Set<String> deleted) {
+			this.id = id;
+			this.index = index;
+			this.deleted = deleted;
+		}
+
+		public boolean isLive(String location) {
+			return index.wordCount(location) > 0 && !deleted.contains(location);
+		}
+
+		public Segment delete(String location) {
+			HashSet<String> copy = new HashSet<String>(deleted);
+			copy.add(location);
+			return new Segment(id, index, Collections.unmodifiableSet(copy));
+		}
+
+		public int size() {
+			return index.getLocations().size() - deleted.size();
+		}
+
+		/**
+		 * @return true if at least half of the locations were deleted
+		 */
+		public boolean isMostlyDeleted() {
+			return deleted.size() * 2 >= index.getLocations().size();
+		}
+
+		/**
+		 * Leaves out the deleted locations of the search results of this segment.
+		 *
+		 * @param results the search results
+		 * @return the live search results
+		 */
+		public ArrayList<SearchResult> live(ArrayList<SearchResult> results) {
+			if (!deleted.isEmpty()) {
+				results.removeIf(result -> deleted.contains(result.getLocation()));
+			}
+			return results;
+		}
+	}
+
+	/**
+	 * An immutable list of segments, published at once. The segments are let go
+	 * once the version was replaced and nothing has it pinned.
+	 */
+	private static class Version {
+		private final long number;
+		private volatile List<Segment> segments;
+
+		/** The number of readers that pinned this version, or -1 once reclaimed. */
+		private final AtomicInteger pins = new AtomicInteger();
+		private volatile boolean retired = false;
+
+		public Version(long number, List<Segment> segments) {
+			this.number = number;
+			this.segments = segments;
+		}
+
+		/**
+		 * @return false if the version was already reclaimed and cannot be pinned
+		 */
+		public boolean pin() {
+			int count;
+			do {
+				count = pins.get();
+				if (count < 0) {
+					return false;
+				}
+			} while (!pins.compareAndSet(count, count + 1));
+			return true;
+		}
+
+		public void unpin() {
+			if (pins.decrementAndGet() == 0 && retired) {
+				reclaim();
+			}
+		}
+
+		/**
+		 * Marks the version as replaced, and reclaims it if nothing has it pinned.
+		 */
+		public void retire() {
+			retired = true;
+			reclaim();
+		}
+
+		private void reclaim() {
+			if (pins.compareAndSet(0, -1)) {
+				segments = null;
+				Metrics.increment("index.versions.reclaimed");
+				log.debug("Reclaimed version {}", number);
+			}
+		}
+	}
+
+	/** The published version, replaced as a whole and never changed. */
+	private volatile Version version = new Version(0, List.of());
+
+	/** New files that have not been flushed yet, guarded by this index. */
+	private InvertedIndex buffer = new InvertedIndex();
+
+	private final int flushLocations;
+	private final WorkQueue merges = new WorkQueue(1);
+	private boolean merging = false;
+	private long nextId = 0;
+
+	/**
+	 * Initializes an index that flushes after {@link #DEFAULT_FLUSH} locations.
+	 */
+	public SegmentedIndex() {
+		this(DEFAULT_FLUSH);
+	}
+
+	/**
+	 * Initializes the index.
+	 *
+	 * @param flushLocations the number of locations the buffer holds before it is
+	 *                       flushed
+	 */
+	public SegmentedIndex(int flushLocations) {
+		this.flushLocations = Math.max(1, flushLocations);
+	}
+
+	/**
+	 * Adds the words and locations of several indexes, such as the files built
+	 * since the last refresh. Locations that are already in the index are
+	 * replaced.
+	 *
+	 * @param others the indexes to add
+	 */
+	public synchronized void addAll(Collection<InvertedIndex> others) {
+		for (var other : others) {
+			for (var location : other.getLocations()) {
+				delete(location);
+			}
+			buffer.addAll(other);
+		}
+		if (buffer.getLocations().size() >= flushLocations) {
+			refresh();
+		}
+	}
+
+	/**
+	 * Removes a location from the index.
+	 *
+	 * @param location the location to remove
+	 * @return true if the location was in the index
+	 */
+	public synchronized boolean delete(String location) {
+		boolean found = buffer.remove(location);
+		List<Segment> segments = version.segments;
+		ArrayList<Segment> current = null;
+		for (int i = 0; i < segments.size(); i++) {
+			Segment segment = segments.get(i);
+			if (segment.isLive(location)) {
+				if (current == null) {
+					current = new ArrayList<Segment>(segments);
+				}
+				current.set(i, segment.delete(location));
+				found = true;
+			}
+		}
+		if (current != null) {
+			publish(current);
+			Metrics.increment("index.deletes");
+			maybeMerge();
+		}
+		return found;
+	}
+
+	/**
+	 * Flushes the buffer into a new segment, so searches see every file added so
+	 * far.
+	 */
+	public synchronized void refresh() {
+		if (buffer.getLocations().isEmpty()) {
+			return;
+		}
+		ArrayList<Segment> current = new ArrayList<Segment>(version.segments);
+		current.add(new Segment(nextId++, buffer, Set.of()));
+		buffer = new InvertedIndex();
+		publish(current);
+		Metrics.increment("index.flushes");
+		log.debug("Flushed segment {}, {} segments", nextId - 1, current.size());
+		maybeMerge();
+	}
+
+	/**
+	 * Flushes the buffer and waits for the merges that are running.
+	 */
+	public void finish() {
+		refresh();
+		merges.await();
+	}
+
+	/**
+	 * Flushes the buffer, waits for the merges that are running, and stops the
+	 * merge minion.
+	 */
+	public void close() {
+		refresh();
+		merges.finish();
+	}
+
+	/**
+	 * @return the number of segments searches see
+	 */
+	public synchronized int segments() {
+		return version.segments.size();
+	}
+
+	/**
+	 * @return the number of the published version
+	 */
+	public long getVersion() {
+		return version.number;
+	}
+
+	/**
+	 * Publishes a new version of the segments, and retires the one it replaces.
+	 * Callers must hold the lock of this index.
+	 *
+	 * @param current the new segments
+	 */
+	private void publish(List<Segment> current) {
+		Version old = version;
+		version = new Version(old.number + 1, List.copyOf(current));
+		old.retire();
+		Metrics.increment("index.versions.published");
+		Metrics.record("index.segments", current.size());
+	}
+
+	/**
+	 * Pins the published version, which stays the same until the snapshot is
+	 * unpinned. Never blocks: a version replaced while it was being pinned is
+	 * skipped for the one that replaced it.
+	 *
+	 * @return the pinned snapshot
+	 */
+	@Override
+	public Snapshot pin() {
+		while (true) {
+			Version current = version;
+			if (current.pin()) {
+				return new Snapshot(current);
+			}
+		}
+	}
+
+	/**
+	 * Runs a single search on a pinned snapshot.
+	 *
+	 * @param search the search to run
+	 * @return the result of the search
+	 */
+	private <T> T read(Function<Snapshot, T> search) {
+		Snapshot snapshot = pin();
+		try {
+			return search.apply(snapshot);
+		} finally {
+			snapshot.unpin();
+		}
+	}
+
+	/**
+	 * Starts a merge if one is needed and none is running. Callers must hold the
+	 * lock of this index.
+	 */
+	private void maybeMerge() {
+		if (!merging && !candidates(version.segments).isEmpty()) {
+			merging = true;
+			merges.execute(new MergeMinion());
+		}
+	}
+
+	/**
+	 * Picks the segments to merge: the smallest ones if there are more than
+	 * {@link #MERGE_FACTOR}, otherwise any that are mostly deleted.
+	 *
+	 * @param current the segments to pick from
+	 * @return the segments to merge, or an empty list if none need merging
+	 */
+	private static List<Segment> candidates(List<Segment> current) {
+		if (current.size() > MERGE_FACTOR) {
+			ArrayList<Segment> smallest = new ArrayList<Segment>(current);
+			smallest.sort(Comparator.comparingInt(Segment::size));
+			return smallest.subList(0, MERGE_FACTOR);
+		}
+		ArrayList<Segment> deleted = new ArrayList<Segment>();
+		for (var segment : current) {
+			if (!segment.deleted.isEmpty() && segment.isMostlyDeleted()) {
+				deleted.add(segment);
+			}
+		}
+		return deleted;
+	}
+
+	/**
+	 * Class for merging segments in the background. The merged segment is built
+	 * without any lock, and locations deleted from the old segments while it was
+	 * built are deleted from the merged one when it is published.
+	 */
+	private class MergeMinion implements Runnable {
+
+		@Override
+		public void run() {
+			long start = Metrics.start();
+			List<Segment> picked;
+			synchronized (SegmentedIndex.this) {
+				picked = candidates(version.segments);
+			}
+
+			InvertedIndex merged = new InvertedIndex();
+			HashMap<Long, Segment> before = new HashMap<Long, Segment>();
+			for (var segment : picked) {
+				merged.addAll(segment.index, segment.deleted);
+				before.put(segment.id, segment);
+			}
+
+			synchronized (SegmentedIndex.this) {
+				HashSet<String> deleted = new HashSet<String>();
+				ArrayList<Segment> current = new ArrayList<Segment>();
+				for (var segment : version.segments) {
+					Segment old = before.get(segment.id);
+					if (old == null) {
+						current.add(segment);
+						continue;
+					}
+					for (var location : segment.deleted) {
+						if (!old.deleted.contains(location)) {
+							deleted.add(location);
+						}
+					}
+				}
+				if (!merged.getLocations().isEmpty()) {
+					current.add(new Segment(nextId++, merged, Collections.unmodifiableSet(deleted)));
+				}
+				publish(current);
+				merging = false;
+				Metrics.increment("index.merges");
+				Metrics.time("index.merge.nanos", start);
+				log.debug("Merged {} segments, {} segments", picked.size(), current.size());
+				maybeMerge();
+			}
+		}
+	}
+
+	/**
+	 * Does an exact or partial search on the published version.
+	 *
+	 * @param plan the plan of the words to look for
+	 * @return the sorted search results
+	 */
+	public ArrayList<SearchResult> search(QueryPlan plan) {
+		return read(snapshot -> snapshot.search(plan));
+	}
+
+	@Override
+	public HashMap<String, Integer> counts(QueryPlan plan) {
+		return read(snapshot -> snapshot.counts(plan));
+	}
+
+	/**
+	 * Builds the search results from the counts with the word counts of the
+	 * published version, which may be newer than the counts. Pin a snapshot to
+	 * keep both the same.
+	 */
+	@Override
+	public ArrayList<SearchResult> results(List<HashMap<String, Integer>> allCounts) {
+		return read(snapshot -> snapshot.results(allCounts));
+	}
+
+	@Override
+	public ArrayList<SearchResult> andSearch(QueryPlan plan) {
+		return read(snapshot -> snapshot.andSearch(plan));
+	}
+
+	@Override
+	public ArrayList<SearchResult> phraseSearch(QueryPlan plan) {
+		return read(snapshot -> snapshot.phraseSearch(plan));
+	}
+
+	@Override
+	public ArrayList<SearchResult> topSearch(QueryPlan plan, int top) {
+		return read(snapshot -> snapshot.topSearch(plan, top));
+	}
+
+	/**
+	 * A pinned version of the index. Every search on a snapshot sees the same
+	 * segments, no matter what is added, deleted or merged in the meantime, and
+	 * none of them take a lock. A snapshot cannot be searched after it is unpinned.
+	 */
+	public static class Snapshot implements SearchableIndex {
+		private final Version version;
+		private final AtomicBoolean pinned = new AtomicBoolean(true);
+
+		private Snapshot(Version version) {
+			this.version = version;
+		}
+
+		/**
+		 * @return the number of the pinned version
+		 */
+		public long getVersion() {
+			return version.number;
+		}
+
+		/**
+		 * @return the pinned segments
+		 * @throws IllegalStateException if the snapshot was unpinned
+		 */
+		private List<Segment> segments() {
+			if (!pinned.get()) {
+				throw new IllegalStateException("Snapshot of version " + version.number + " was unpinned");
+			}
+			return version.segments;
+		}
+
+		/**
+		 * Pins the same version again, to be unpinned separately.
+		 */
+		@Override
+		public Snapshot pin() {
+			segments();
+			version.pins.incrementAndGet();
+			return new Snapshot(version);
+		}
+
+		@Override
+		public void unpin() {
+			if (pinned.compareAndSet(true, false)) {
+				version.unpin();
+			}
+		}
+
+		/**
+		 * Runs a search on every segment with its own copy of the plan, and adds what
+		 * each search visited to the plan.
+		 *
+		 * @param plan   the plan of the words to look for
+		 * @param search the search to run on a segment and its plan
+		 * @return the sorted live search results of every segment
+		 */
+		private ArrayList<SearchResult> fanOut(QueryPlan plan,
+				Function<Segment, Function<QueryPlan, ArrayList<SearchResult>>> search) {
+			ArrayList<SearchResult> results = new ArrayList<SearchResult>();
+			for (var segment : segments()) {
+				if (plan.expired()) {
+					break;
+				}
+				QueryPlan part = plan.child();
+				results.addAll(segment.live(search.apply(segment).apply(part)));
+				plan.add(part);
+			}
+			Collections.sort(results);
+			return results;
+		}
+
+		/**
+		 * Does an exact or partial search on every segment.
+		 *
+		 * @param plan the plan of the words to look for
+		 * @return the sorted search results
+		 */
+		public ArrayList<SearchResult> search(QueryPlan plan) {
+			return fanOut(plan, segment -> segment.index::search);
+		}
+
+		@Override
+		public HashMap<String, Integer> counts(QueryPlan plan) {
+			HashMap<String, Integer> counts = new HashMap<String, Integer>();
+			for (var result : search(plan)) {
+				counts.put(result.getLocation(), result.getCount());
+			}
+			return counts;
+		}
+
+		@Override
+		public ArrayList<SearchResult> results(List<HashMap<String, Integer>> allCounts) {
+			List<Segment> current = segments();
+			HashMap<String, SearchResult> lookup = new HashMap<String, SearchResult>();
+			ArrayList<SearchResult> results = new ArrayList<SearchResult>();
+			for (var counts : allCounts) {
+				for (var entry : counts.entrySet()) {
+					String location = entry.getKey();
+					SearchResult result = lookup.get(location);
+
+					if (result == null) { // adds to lookup if we don't have the location
+						result = new SearchResult(location, wordCount(current, location));
+						lookup.put(location, result);
+						results.add(result);
+					}
+					result.updateResult(entry.getValue());
+				}
+			}
+			Collections.sort(results);
+			return results;
+		}
+
+		/**
+		 * Returns the number of words at a location, from the segment it is live in.
+		 *
+		 * @param current  the segments to look in
+		 * @param location the location to look for
+		 * @return the number of words, or 0 if the location is not live
+		 */
+		private static int wordCount(List<Segment> current, String location) {
+			for (var segment : current) {
+				if (segment.isLive(location)) {
+					return segment.index.wordCount(location);
+				}
+			}
+			return 0;
+		}
+
+		@Override
+		public ArrayList<SearchResult> andSearch(QueryPlan plan) {
+			return fanOut(plan, segment -> segment.index::andSearch);
+		}
+
+		@Override
+		public ArrayList<SearchResult> phraseSearch(QueryPlan plan) {
+			return fanOut(plan, segment -> segment.index::phraseSearch);
+		}
+
+		/**
+		 * Does an exact or partial search on every segment, only keeping the best
+		 * results. Segments without deletions only return their own best results;
+		 * segments with deletions are searched in full so deleted locations cannot
+		 * crowd out live ones.
+		 */
+		@Override
+		public ArrayList<SearchResult> topSearch(QueryPlan plan, int top) {
+			return TopKSearch.limit(fanOut(plan, segment -> segment.deleted.isEmpty()
+					? part -> segment.index.topSearch(part, top)
+					: segment.index::search), top);
+		}
+
+		@Override
+		public String toString() {
+			return "version " + version.number;
+		}
+	}
+
+	/**
+	 * Merges every live location of every segment and the buffer into one index,
+	 * for writing the whole index out.
+	 *
+	 * @return the merged index
+	 */
+	public synchronized InvertedIndex merged() {
+		InvertedIndex merged = new InvertedIndex();
+		for (var segment : version.segments) {
+			merged.addAll(segment.index, segment.deleted);
+		}
+		merged.addAll(buffer);
+		return merged;
+	}
+
+	/**
+	 * Writes the whole index to a file.
+	 *
+	 * @param path   the file to write to
+	 * @param format the format to write in
+	 * @throws IOException if unable to write to the file
+	 */
+	public void toJson(Path path, OutputFormat format) throws IOException {
+		merged().toJson(path, format);
+	}
+
+	/**
+	 * Writes the number of words at every location to a file.
+	 *
+	 * @param path   the file to write to
+	 * @param format the format to write in
+	 * @throws IOException if unable to write to the file
+	 */
+	public void locationsToJson(Path path, OutputFormat format) throws IOException {
+		merged().locationsToJson(path, format);
+	}
+
+	@Override
+	public String toString() {
+		return "version " + getVersion() + ", " + segments() + " segments";
+	}
+}
@@ -0,0 +1,341 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Searches an index that is split across several shard processes, each started
+ * with {@code -shard I/N -server PORT} on the same path so it builds and serves
+ * its own part of the files. Every search is sent to all of the shards at once
+ * over loopback, and their results are merged.
+ *
+ * A file is only ever built by one shard, so its counts and its total number of
+ * words come from that shard alone. The merged scores and order are the same as
+ * for a single index, and the best results of the whole index are always among
+ * the best results of some shard, so a top search only asks each shard for its
+ * own best results. The counts of a word carry the total words of every
+ * location they were found at, so the results are built from them without the
+ * index keeping anything between searches.
+ *
+ * Only a few requests are sent to each shard at once, fewer than the number a
+ * shard admits by default, and a shard that still turns a request away with a
+ * 503 is asked again after the time it asks for or an exponential backoff,
+ * whichever is longer. A shard that fails in any other way, or keeps turning
+ * requests away, fails the search, since its results would be missing without
+ * any sign in the output. The failure is kept for {@link #failure()}.
+ *
+ * Each search pins the shards on its own, so a batch only sees a single version
+ * of the index if the shards are not being built while it runs.
+ */
+public class ShardedIndex implements SearchableIndex {
+	public static final Logger log = LogManager.getLogger(Driver.class);
+
+	/** The default number of requests sent to each shard at once. */
+	public static final int DEFAULT_INFLIGHT = 2;
+
+	/** How many times a request turned away by a shard is sent. */
+	public static final int MAX_ATTEMPTS = 8;
+
+	/** The first wait before a request turned away is sent again, in milliseconds. */
+	public static final long BACKOFF_MILLIS = 50;
+
+	private final HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+	private final List<String> shards = new ArrayList<String>();
+
+	/** Limits the requests sent to each shard at once. */
+	private final List<Semaphore> inflight = new ArrayList<Semaphore>();
+
+	/** The first time a shard failed, or null. */
+	private volatile IOException failure;
+
+	/**
+	 * Initializes the index, sending {@link #DEFAULT_INFLIGHT} requests to each
+	 * shard at once.
+	 *
+	 * @param ports the ports the shards listen on
+	 */
+	public ShardedIndex(List<Integer> ports) {
+		this(ports, DEFAULT_INFLIGHT);
+	}
+
+	/**
+	 * Initializes the index.
+	 *
+	 * @param ports    the ports the shards listen on
+	 * @param inflight the number of requests sent to each shard at once, which
+	 *                 should be less than the number each shard admits
+	 */
+	public ShardedIndex(List<Integer> ports, int inflight) {
+		for (var port : ports) {
+			shards.add("http://localhost:" + port + "/shard?");
+			this.inflight.add(new Semaphore(Math.max(1, inflight)));
+		}
+	}
+
+	/**
+	 * Parses a comma separated list of ports, such as {@code 9001,9002,9003}.
+	 * Anything that is not a port is skipped.
+	 *
+	 * @param ports    the ports, or null
+	 * @param inflight the number of requests sent to each shard at once
+	 * @return the index searching the shards on those ports
+	 */
+	public static ShardedIndex fromPorts(String ports, int inflight) {
+		ArrayList<Integer> list = new ArrayList<Integer>();
+		for (var port : ports == null ? new String[0] : ports.split(",")) {
+			try {
+				list.add(Integer.parseInt(port.trim()));
+			} catch (NumberFormatException e) {
+				log.warn("Skipping the shard port {}", port);
+			}
+		}
+		return new ShardedIndex(list, inflight);
+	}
+
+	/**
+	 * @return the number of shards searched
+	 */
+	public int shards() {
+		return shards.size();
+	}
+
+	/**
+	 * @return the first failure of a shard, or null if every search was answered
+	 */
+	public IOException failure() {
+		return failure;
+	}
+
+	/**
+	 * Sends a search to every shard at once and merges the results. Shards that
+	 * turn the search away are asked again until every shard answered.
+	 *
+	 * @param plan the plan of the stemmed words to look for
+	 * @param mode how the words are combined
+	 * @param top  the number of results each shard keeps, or 0 to keep every
+	 *             result
+	 * @return the sorted results of every shard
+	 * @throws UncheckedIOException if a shard failed or kept turning the search
+	 *                              away
+	 */
+	private ArrayList<SearchResult> scatter(QueryPlan plan, SearchMode mode, int top) {
+		String query = "words=" + URLEncoder.encode(String.join(" ", plan.words()), StandardCharsets.UTF_8) + "&mode="
+				+ mode.name().toLowerCase() + "&top=" + top;
+		if (plan.isExact()) {
+			query += "&exact";
+		}
+
+		ArrayList<SearchResult> results = new ArrayList<SearchResult>();
+		ArrayList<Integer> remaining = new ArrayList<Integer>();
+		for (int i = 0; i < shards.size(); i++) {
+			remaining.add(i);
+		}
+
+		for (int attempt = 1; !remaining.isEmpty(); attempt++) {
+			long millis = plan.remainingMillis();
+			String request = millis > 0 ? query + "&deadline=" + millis : query;
+
+			HashMap<Integer, CompletableFuture<HttpResponse<String>>> responses = new HashMap<>();
+			for (var shard : remaining) { // permits are always taken in the same order
+				responses.put(shard, send(shard, request));
+			}
+
+			ArrayList<Integer> rejected = new ArrayList<Integer>();
+			long wait = BACKOFF_MILLIS << Math.min(attempt - 1, 10);
+			for (var shard : remaining) {
+				HttpResponse<String> response;
+				try {
+					response = responses.get(shard).join();
+				} catch (CompletionException e) {
+					throw failed(shard, new IOException(e.getCause()));
+				}
+
+				if (response.statusCode() == 503) {
+					rejected.add(shard);
+					long asked = response.headers().firstValueAsLong("Retry-After").orElse(0) * 1000;
+					wait = Math.max(wait, asked);
+				} else if (response.statusCode() != 200) {
+					throw failed(shard, new IOException(response.statusCode() + " " + response.body()));
+				} else {
+					gather(plan, response, results);
+				}
+			}
+
+			if (rejected.isEmpty()) {
+				break;
+			}
+			Metrics.add("shard.retries", rejected.size());
+			if (attempt >= MAX_ATTEMPTS) {
+				throw failed(rejected.get(0), new IOException("Turned away " + attempt + " times"));
+			}
+			if (plan.remainingMillis() > 0 && wait >= plan.remainingMillis()) {
+				log.debug("Shards {} are busy past the deadline of {}", rejected, plan.words());
+				plan.markPartial();
+				break;
+			}
+			log.debug("Shards {} are busy, asking again in {} ms", rejected, wait);
+			try {
+				Thread.sleep(wait);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw failed(rejected.get(0), new IOException("Interrupted waiting for a busy shard", e));
+			}
+			remaining = rejected;
+		}
+
+		Collections.sort(results);
+		return results;
+	}
+
+	/**
+	 * Sends a request to a shard once it has room for another request from us.
+	 *
+	 * @param shard   the shard to send to
+	 * @param request the query string of the request
+	 * @return the response
+	 */
+	private CompletableFuture<HttpResponse<String>> send(int shard, String request) {
+		Semaphore permits = inflight.get(shard);
+		permits.acquireUninterruptibly();
+		try {
+			HttpRequest http = HttpRequest.newBuilder(URI.create(shards.get(shard) + request)).GET().build();
+			return client.sendAsync(http, HttpResponse.BodyHandlers.ofString())
+					.whenComplete((response, e) -> permits.release());
+		} catch (RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Adds the results of a shard to the results of every shard.
+	 *
+	 * @param plan     the plan of the search
+	 * @param response the answer of the shard
+	 * @param results  where to add the results
+	 */
+	private static void gather(QueryPlan plan, HttpResponse<String> response, ArrayList<SearchResult> results) {
+		if (response.headers().firstValue("X-Partial-Results").isPresent()) {
+			plan.markPartial();
+		}
+		plan.visit(Integer.parseInt(response.headers().firstValue("X-Visited").orElse("0")));
+		for (var line : response.body().split("\n")) {
+			if (line.isEmpty()) {
+				continue;
+			}
+			int second = line.lastIndexOf('\t');
+			int first = line.lastIndexOf('\t', second - 1);
+			SearchResult result = new SearchResult(line.substring(0, first),
+					Integer.parseInt(line.substring(second + 1)));
+			result.updateResult(Integer.parseInt(line.substring(first + 1, second)));
+			results.add(result);
+		}
+	}
+
+	/**
+	 * Records a shard that failed.
+	 *
+	 * @param shard the shard that failed
+	 * @param cause why it failed
+	 * @return the exception to throw
+	 */
+	private UncheckedIOException failed(int shard, IOException cause) {
+		IOException named = new IOException("Shard " + shards.get(shard) + " failed: " + cause.getMessage(), cause);
+		log.error(named.getMessage());
+		Metrics.increment("shard.failed");
+		if (failure == null) {
+			failure = named;
+		}
+		return new UncheckedIOException(named);
+	}
+
+	/**
+	 * Returns the counts of the words, along with the total words of every
+	 * location they were found at.
+	 */
+	@Override
+	public HashMap<String, Integer> counts(QueryPlan plan) {
+		Counts counts = new Counts();
+		for (var result : scatter(plan, SearchMode.OR, 0)) {
+			counts.put(result.getLocation(), result.getCount());
+			counts.wordCounts.put(result.getLocation(), result.getWordCount());
+		}
+		return counts;
+	}
+
+	/**
+	 * Builds the search results from the counts returned by
+	 * {@link #counts(QueryPlan)}, with the total words they carry.
+	 *
+	 * @throws IllegalArgumentException if some counts did not come from this kind
+	 *                                  of index
+	 */
+	@Override
+	public ArrayList<SearchResult> results(List<HashMap<String, Integer>> allCounts) {
+		HashMap<String, SearchResult> lookup = new HashMap<String, SearchResult>();
+		ArrayList<SearchResult> results = new ArrayList<SearchResult>();
+		for (var counts : allCounts) {
+			if (!(counts instanceof Counts shardCounts)) {
+				throw new IllegalArgumentException("The counts were not returned by a sharded index");
+			}
+			for (var entry : counts.entrySet()) {
+				String location = entry.getKey();
+				SearchResult result = lookup.get(location);
+
+				if (result == null) {
+					result = new SearchResult(location, shardCounts.wordCounts.get(location));
+					lookup.put(location, result);
+					results.add(result);
+				}
+				result.updateResult(entry.getValue());
+			}
+		}
+		Collections.sort(results);
+		return results;
+	}
+
+	@Override
+	public ArrayList<SearchResult> andSearch(QueryPlan plan) {
+		return scatter(plan, SearchMode.AND, 0);
+	}
+
+	@Override
+	public ArrayList<SearchResult> phraseSearch(QueryPlan plan) {
+		return scatter(plan, SearchMode.PHRASE, 0);
+	}
+
+	@Override
+	public ArrayList<SearchResult> topSearch(QueryPlan plan, int top) {
+		return TopKSearch.limit(scatter(plan, SearchMode.OR, top), top);
+	}
+
+	@Override
+	public String toString() {
+		return "ShardedIndex" + shards;
+	}
+
+	/**
+	 * The counts of the words of a plan, with the total words of every location
+	 * they were found at.
+	 */
+	private static class Counts extends HashMap<String, Integer> {
+		private static final long serialVersionUID = 1L;
+
+		/** The total words of every location in the counts. */
+		private final HashMap<String, Integer> wordCounts = new HashMap<String, Integer>();
+	}
+}
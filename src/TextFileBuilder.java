@@ -18,11 +18,28 @@ public class TextFileBuilder {
 	 *
 	 */
 	public static void traverseDirectory(Path path, InvertedIndex index) throws IOException {
+		traverseDirectory(path, index, 0, 1);
+	}
+
+	/**
+	 * Traverses the directory like {@link #traverseDirectory(Path, InvertedIndex)},
+	 * but only builds the files in one shard, so several processes given the same
+	 * path each build a different part.
+	 *
+	 * @param path   the directory or file to build from
+	 * @param index  the index to add to
+	 * @param shard  the part to build, from 0
+	 * @param shards the number of parts
+	 * @throws IOException if unable to walk the directory
+	 *
+	 * @see #inShard(Path, int, int)
+	 */
+	public static void traverseDirectory(Path path, InvertedIndex index, int shard, int shards) throws IOException {
 		Files.walk(path, FileVisitOption.FOLLOW_LINKS).filter(p -> !Files.isDirectory(p)).filter(p -> {
 			String name = p.toString().toLowerCase();
 			boolean name1 = name.endsWith(".txt") || name.endsWith(".text");
 			return name1;
-		}).forEach(p -> {
+		}).filter(p -> inShard(p, shard, shards)).forEach(p -> {
 			try {
 				stemFile(p, index);
 			} catch (IOException e) {
@@ -32,6 +49,19 @@ public class TextFileBuilder {
 
 	}
 
+	/**
+	 * Checks whether a file belongs to a shard. Every file belongs to exactly one
+	 * of the shards, decided by its path alone.
+	 *
+	 * @param file   the file to check
+	 * @param shard  the shard, from 0
+	 * @param shards the number of shards
+	 * @return true if the file should be built by the shard
+	 */
+	public static boolean inShard(Path file, int shard, int shards) {
+		return Math.floorMod(file.toString().hashCode(), shards) == shard;
+	}
+
 	/**
 	 * Reads a file line by line, parses each line into cleaned and stemmed words,
 	 * and then writes that line to a new file.
@@ -46,6 +76,9 @@ public class TextFileBuilder {
 	public static void stemFile(Path inputFile, InvertedIndex index) throws IOException {
 		SnowballStemmer stemmer = new SnowballStemmer(SnowballStemmer.ALGORITHM.ENGLISH);
 
+		long start = Metrics.start();
+		SearchEvents.FileIndexed event = new SearchEvents.FileIndexed();
+		event.begin();
 		try (BufferedReader reader = Files.newBufferedReader(inputFile, StandardCharsets.UTF_8)) {
 
 			String line = reader.readLine();
@@ -65,6 +98,19 @@ public class TextFileBuilder {
 				}
 				line = reader.readLine(); // reads next line
 			}
+			if (Metrics.isEnabled()) {
+				Metrics.increment("build.files");
+				Metrics.add("build.tokens", position_counter - 1);
+				Metrics.add("build.bytes", Files.size(inputFile));
+				Metrics.time("build.file.nanos", start);
+			}
+			event.end();
+			if (event.shouldCommit()) {
+				event.path = name;
+				event.bytes = Files.size(inputFile);
+				event.tokens = position_counter - 1;
+				event.commit();
+			}
 		}
 	}
 }
@@ -1,15 +1,20 @@
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-public class ThreadSafeInvertedIndex {
+public class ThreadSafeInvertedIndex implements SearchableIndex {
 
 	/**
 	 * Stores a mapping of words to the positions the words were found.
@@ -19,6 +24,18 @@ public class ThreadSafeInvertedIndex {
 	private final TreeMap<String, Integer> locationsIndex;
 	private ReadWriteLock lock;
 
+	/**
+	 * Stores the highest score each word can add to a search result, or null if
+	 * the index changed since they were calculated.
+	 */
+	private volatile HashMap<String, Double> bounds;
+
+	/** The number of words a prefix must expand to before it is split into subtasks. */
+	public static final int PARALLEL_THRESHOLD = 2048;
+
+	/** The number of words each subtask of a broad prefix counts. */
+	public static final int SUBTASK_SIZE = 512;
+
 	/**
 	 * Initializes the index.
 	 */
@@ -51,6 +68,7 @@ public class ThreadSafeInvertedIndex {
 	public boolean add(String word, int position, String location) {
 		lock.lockReadWrite();
 		try {
+			this.bounds = null;
 			this.index.putIfAbsent(word, new TreeMap<>());
 			this.index.get(word).putIfAbsent(location, new TreeSet<>());
 
@@ -77,6 +95,21 @@ public class ThreadSafeInvertedIndex {
 		}
 	}
 
+	/**
+	 * sends the locations to TreeJSONWriter to get written in the given format
+	 *
+	 * @param path   the path to write the file to
+	 * @param format the output format to use
+	 */
+	public void locationsToJson(Path path, OutputFormat format) throws IOException {
+		lock.lockReadOnly();
+		try {
+			TreeJSONWriter.asObject(this.locationsIndex, path, format);
+		} finally {
+			lock.unlockReadOnly();
+		}
+	}
+
 	/**
 	 * Adds the array of words at once, assuming the first word in the array is at
 	 * position 1.
@@ -124,23 +157,65 @@ public class ThreadSafeInvertedIndex {
 	}
 
 	/**
-	 * Returns the number of locations this word appears in
+	 * Adds the words and locations of several indexes at once, such as the files
+	 * built since the last refresh, so readers see all of them or none of them.
 	 *
-	 * @param word word to look for
-	 * @return number of times the word was found
+	 * @param others the indexes to add
 	 */
-	public int locations(String word) {
-		lock.lockReadOnly();
+	public void addAll(Collection<InvertedIndex> others) {
+		lock.lockReadWrite();
 		try {
-			if (this.index.containsKey(word)) {
-				return this.index.get(word).size();
+			this.bounds = null;
+			for (var other : others) {
+				other.addTo(this.index, this.locationsIndex);
+			}
+		} finally {
+			lock.unlockReadWrite();
+		}
+	}
+
+	/**
+	 * Runs a short lookup on the index. The lookup is first tried without any lock
+	 * and kept if no writer got in the way, and is only run again under the read
+	 * lock if one did.
+	 *
+	 * @param lookup the lookup, which must only read the index
+	 * @return the result of the lookup
+	 */
+	private <T> T read(Supplier<T> lookup) {
+		long stamp = lock.tryOptimisticRead();
+		if (stamp != -1) {
+			try {
+				T value = lookup.get();
+				if (lock.validate(stamp)) {
+					return value;
+				}
+			} catch (RuntimeException e) { // a writer changed the index while we were reading
+				log.debug("Optimistic read failed", e);
 			}
-			return 0;
+		}
+
+		lock.lockReadOnly();
+		try {
+			return lookup.get();
 		} finally {
 			lock.unlockReadOnly();
 		}
 	}
 
+	/**
+	 * Returns the number of locations this word appears in
+	 *
+	 * @param word word to look for
+	 * @return number of times the word was found
+	 */
+	public int locations(String word) {
+		return read(() -> {
+			var posting = this.index.get(word);
+			return posting == null ? 0 : posting.size();
+		});
+	}
+
 	/**
 	 * Returns the number of times the word appears at a specific location
 	 * 
@@ -149,15 +224,11 @@ public class ThreadSafeInvertedIndex {
 	 * @return number of times the word was found
 	 */
 	public int positions(String word, String location) {
-		lock.lockReadOnly();
-		try {
-			if (this.index.containsKey(word) && this.index.get(word).containsKey(location)) {
-				return this.index.get(word).get(location).size();
-			}
-			return 0;
-		} finally {
-			lock.unlockReadOnly();
-		}
+		return read(() -> {
+			var posting = this.index.get(word);
+			var positions = posting == null ? null : posting.get(location);
+			return positions == null ? 0 : positions.size();
+		});
 	}
 
 	/**
@@ -166,13 +237,7 @@ public class ThreadSafeInvertedIndex {
 	 * @return number of words
 	 */
 	public int words() {
-		lock.lockReadOnly();
-		try {
-			return this.index.size();
-		} finally {
-			lock.unlockReadOnly();
-		}
-
+		return read(() -> this.index.size());
 	}
 
 	/**
@@ -182,12 +247,7 @@ public class ThreadSafeInvertedIndex {
 	 * @return true if the word is stored in the index
 	 */
 	public boolean contains(String word) {
-		lock.lockReadOnly();
-		try {
-			return this.index.containsKey(word);
-		} finally {
-			lock.unlockReadOnly();
-		}
+		return read(() -> this.index.containsKey(word));
 	}
 
 	/**
@@ -198,12 +258,10 @@ public class ThreadSafeInvertedIndex {
 	 * @return true if the word and location are stored in the index
 	 */
 	public boolean contains(String word, String location) {
-		lock.lockReadOnly();
-		try {
-			return contains(word) && this.index.get(word).containsKey(location);
-		} finally {
-			lock.unlockReadOnly();
-		}
+		return read(() -> {
+			var posting = this.index.get(word);
+			return posting != null && posting.containsKey(location);
+		});
 	}
 
 	/**
@@ -215,23 +273,59 @@ public class ThreadSafeInvertedIndex {
 	 * @return true if the word is stored in the index at the specified position
 	 */
 	public boolean contains(String word, int position, String location) {
+		return read(() -> {
+			var posting = this.index.get(word);
+			var positions = posting == null ? null : posting.get(location);
+			return positions != null && positions.contains(position);
+		});
+	}
+
+	/**
+	 * Passes the index to TreeJSONWriter so that it can start writing the index
+	 *
+	 * @param path where to write the file at
+	 */
+	public void toJson(Path path) throws IOException {
 		lock.lockReadOnly();
 		try {
-			return contains(word, location) && this.index.get(word).get(location).contains(position);
+			TreeJSONWriter.asNestedObject(this.index, path);
 		} finally {
 			lock.unlockReadOnly();
 		}
 	}
 
 	/**
-	 * Passes the index to TreeJSONWriter so that it can start writing the index
+	 * Passes the index to TreeJSONWriter so that it can write ranges of words in
+	 * parallel
 	 *
-	 * @param path where to write the file at
+	 * @param path    where to write the file at
+	 * @param threads the number of threads to use
 	 */
-	public void toJson(Path path) throws IOException {
+	public void toJson(Path path, int threads) throws IOException {
 		lock.lockReadOnly();
 		try {
-			TreeJSONWriter.asNestedObject(this.index, path);
+			TreeJSONWriter.asNestedObject(this.index, path, threads);
+		} finally {
+			lock.unlockReadOnly();
+		}
+	}
+
+	/**
+	 * Passes the index to TreeJSONWriter so that it can write the index in the
+	 * given format. Pretty JSON is written in parallel by ranges of words.
+	 *
+	 * @param path    where to write the file at
+	 * @param threads the number of threads to use
+	 * @param format  the output format to use
+	 */
+	public void toJson(Path path, int threads, OutputFormat format) throws IOException {
+		if (format.isDefault()) {
+			toJson(path, threads);
+			return;
+		}
+		lock.lockReadOnly();
+		try {
+			TreeJSONWriter.asNestedObject(this.index, path, format);
 		} finally {
 			lock.unlockReadOnly();
 		}
@@ -251,138 +345,226 @@ public class ThreadSafeInvertedIndex {
 	}
 
 	/**
-	 * method for adding all the results to fullResults
-	 * 
-	 * @param results     the results of the search
-	 * @param fullResults where we add in all the results
-	 * @param query       the query associated with those results
+	 * Does an and search on the Index, only keeping the locations that contain
+	 * every one of the query words
+	 *
+	 * @param plan the plan of the words to look for
+	 * @return the sorted search results
 	 */
-	public TreeMap<String, ArrayList<SearchResult>> addResults(TreeMap<String, ArrayList<SearchResult>> fullResults,
-			String Query, ArrayList<SearchResult> result) {
-		lock.lockReadWrite();
+	@Override
+	public ArrayList<SearchResult> andSearch(QueryPlan plan) {
+		lock.lockReadOnly();
 		try {
-			fullResults.put(Query, result);
-			return fullResults;
+			return ConjunctiveSearch.andSearch(plan.resolve(this.index), this.locationsIndex);
 		} finally {
-			lock.unlockReadWrite();
+			lock.unlockReadOnly();
 		}
-
 	}
 
 	/**
-	 * Class for running our minions with Exact Search
-	 * 
-	 * @param results     the results of the search
-	 * @param fullResults where we add in all the results
-	 * @param lookup      how we easily lookup the query
-	 * @param queries     the words we are looking for
+	 * Does a phrase search on the Index, only keeping the locations that contain
+	 * the query words next to each other in order
+	 *
+	 * @param plan the plan of the exact words to look for in order
+	 * @return the sorted search results
 	 */
-	public class ExactSearchMinion implements Runnable {
-		private final ArrayList<SearchResult> results = new ArrayList<SearchResult>();
-		private final TreeMap<String, ArrayList<SearchResult>> fullResults;
-		private final HashMap<String, SearchResult> lookup;
-		private final TreeSet<String> queries;
-
-		public ExactSearchMinion(TreeSet<String> queries, TreeMap<String, ArrayList<SearchResult>> fullResults) {
-			this.lookup = new HashMap<String, SearchResult>();
-			this.fullResults = fullResults;
-			this.queries = queries;
+	@Override
+	public ArrayList<SearchResult> phraseSearch(QueryPlan plan) {
+		lock.lockReadOnly();
+		try {
+			return ConjunctiveSearch.phraseSearch(plan.resolve(this.index), this.locationsIndex);
+		} finally {
+			lock.unlockReadOnly();
 		}
+	}
 
-		@Override
-		public void run() {
-			// System.out.println("Thread Check in Partial SearchMinion");
-			log.debug("Thread Check in Exact SearchMinion");
-			if (queries.size() < 1) {
-				return;
-			}
-			log.debug("Working on queries: " + queries.toString());
-			for (var word : queries.descendingSet()) {
-				if (index.containsKey(word)) { // see if the index contains the specific word we are looking for word
-					searchHelper(word, lookup, results);
+	/**
+	 * Does an exact or partial search on the Index, only keeping the best results.
+	 * The highest score of every word is calculated on the first search after the
+	 * index is built.
+	 *
+	 * @param plan the plan of the words to look for
+	 * @param top  the number of results to keep
+	 * @return the sorted best search results
+	 */
+	@Override
+	public ArrayList<SearchResult> topSearch(QueryPlan plan, int top) {
+		lock.lockReadOnly();
+		try {
+			HashMap<String, Double> current = this.bounds;
+			if (current == null) {
+				synchronized (this) { // only one reader calculates the bounds
+					current = this.bounds;
+					if (current == null) {
+						current = TopKSearch.bounds(this.index, this.locationsIndex);
+						this.bounds = current;
+					}
 				}
 			}
-			// System.out.println("Done with the results");
-			Collections.sort(results);
-			addResults(fullResults, String.join(" ", queries), results);
-			// System.out.println("Done with the results");
-			// System.out.println("Done with everything in RUN");
+			return TopKSearch.search(plan.resolve(this.index), this.locationsIndex, current, top);
+		} finally {
+			lock.unlockReadOnly();
 		}
-
 	}
 
 	/**
-	 * Class for running our minions with Partial Search
-	 * 
-	 * @param results     the results of the search
-	 * @param fullResults where we add in all the results
-	 * @param lookup      how we easily lookup the query
-	 * @param queries     the words we are looking for
+	 * Returns the number of times the query words appear at each location they
+	 * were found in. For a partial search the counts of every word in the index
+	 * that starts with a query word are added together, and words that expand to
+	 * many index words are counted in parallel.
+	 *
+	 * @param plan the plan of the words we are looking for
+	 * @return a mapping of locations to counts
 	 */
-	public class PartialSearchMinion implements Runnable {
-		private final HashMap<String, SearchResult> lookup;
-		private final ArrayList<SearchResult> results = new ArrayList<SearchResult>();
-		private final TreeMap<String, ArrayList<SearchResult>> fullResults;
-		private final TreeSet<String> queries;
-
-		public PartialSearchMinion(TreeSet<String> queries, TreeMap<String, ArrayList<SearchResult>> fullResults) {
-			lookup = new HashMap<String, SearchResult>();
-			this.fullResults = fullResults;
-			this.queries = queries;
-		}
-
-		@Override
-		public void run() {
-			//System.out.println("Thread Check in Partial SearchMinion");
-			log.debug("Thread Check in Partial SearchMinion");
-			if (queries.size() < 1) {
-				return;
+	@Override
+	public HashMap<String, Integer> counts(QueryPlan plan) {
+		lock.lockReadOnly();
+		try {
+			plan.resolve(this.index);
+			ArrayList<TreeMap<String, TreeSet<Integer>>> postings = new ArrayList<>();
+			for (var term : plan.terms()) {
+				postings.addAll(term.getPostings());
 			}
-			log.debug("Working on queries: " + queries.toString());
-			for (var word : queries.descendingSet()) {
-				var keySet = index.navigableKeySet();
-				for (var keyword : keySet.tailSet(word)) {
-					if (keyword.startsWith(word)) { // checks to see if the word inside the InvertedIndex starts with
-													// the
-													// query word
-						searchHelper(keyword, lookup, results);
-					} else {
+
+			if (postings.size() < PARALLEL_THRESHOLD) {
+				HashMap<String, Integer> counts = new HashMap<String, Integer>();
+				int visited = 0;
+				for (var posting : postings) {
+					visited = countHelper(posting, counts, plan, visited);
+					if (plan.isPartial()) {
 						break;
 					}
 				}
+				plan.visit(visited);
+				return counts;
 			}
-//			System.out.println("Done with the results");
-			Collections.sort(results);
-			addResults(fullResults, String.join(" ", queries), results);
+
+			log.debug("Splitting {} into subtasks for {} words", plan.words(), postings.size());
+			AtomicInteger visited = new AtomicInteger();
+			HashMap<String, Integer> counts = new CountTask(postings, 0, postings.size(), plan, visited).invoke();
+			plan.visit(visited.get());
+			return counts;
+		} finally {
+			lock.unlockReadOnly();
 		}
 	}
 
 	/**
-	 * is useful for having the shared code of partialSearch and ExactSearch, does
-	 * the actual search on the index
+	 * Builds the sorted search results of a query from the counts of each of its
+	 * words, as returned by {@link #counts(QueryPlan)}.
 	 *
-	 * @param keyword  the word we are searching for
-	 * @param location the location we are searching at
-	 * @param lookup   the Hashmap too lookup everything
+	 * @param allCounts the counts of every word in the query
+	 * @return the sorted search results
 	 */
-	private void searchHelper(String keyword, HashMap<String, SearchResult> lookup, ArrayList<SearchResult> results) {
-		lock.lockReadWrite();
+	@Override
+	public ArrayList<SearchResult> results(List<HashMap<String, Integer>> allCounts) {
+		HashMap<String, SearchResult> lookup = new HashMap<String, SearchResult>();
+		ArrayList<SearchResult> results = new ArrayList<SearchResult>();
+		lock.lockReadOnly();
 		try {
-			for (var location : this.index.get(keyword).keySet()) {
-				int count = this.index.get(keyword).get(location).size();
-				int locationCount = locationsIndex.get(location);
-
-				if (lookup.containsKey(location)) { // checks to see if we already have that location
-					lookup.get(location).updateResult(count);
-				} else { // adds to lookup if we don't have the location
-					SearchResult result = new SearchResult(location, locationCount);
-					result.updateResult(count);
-					lookup.put(location, result);
-					results.add(result);
+			for (var counts : allCounts) {
+				for (var entry : counts.entrySet()) {
+					String location = entry.getKey();
+					SearchResult result = lookup.get(location);
+
+					if (result == null) { // adds to lookup if we don't have the location
+						result = new SearchResult(location, locationsIndex.get(location));
+						lookup.put(location, result);
+						results.add(result);
+					}
+					result.updateResult(entry.getValue());
 				}
 			}
 		} finally {
-			lock.unlockReadWrite();
+			lock.unlockReadOnly();
+		}
+		Collections.sort(results);
+		return results;
+	}
+
+	/**
+	 * Adds the number of times a word appears at each location to counts. Callers
+	 * must hold the read lock.
+	 *
+	 * @param posting the locations and positions of the word we are counting
+	 * @param counts  where we add the counts
+	 * @param plan    the plan whose deadline to check
+	 * @param step    the number of locations already counted for the plan, carried
+	 *                over between postings so many small postings still reach a
+	 *                deadline check
+	 * @return the number of locations counted so far, including the ones in this
+	 *         posting counted before the deadline passed
+	 */
+	private static int countHelper(TreeMap<String, TreeSet<Integer>> posting, HashMap<String, Integer> counts,
+			QueryPlan plan, int step) {
+		for (var entry : posting.entrySet()) {
+			if (plan.expired(++step)) {
+				return step - 1;
+			}
+			counts.merge(entry.getKey(), entry.getValue().size(), Integer::sum);
+		}
+		return step;
+	}
+
+	/**
+	 * Task for counting a range of the words a broad prefix expanded to. Ranges
+	 * larger than {@link #SUBTASK_SIZE} are split in half and run on the fork-join
+	 * pool, and the counts of both halves are merged together. The thread that
+	 * invokes the task holds the read lock for all of the subtasks.
+	 *
+	 * @param postings the postings of every word the prefix expanded to
+	 * @param start    the first word in our range
+	 * @param end      one past the last word in our range
+	 * @param plan     the plan whose deadline to check
+	 * @param visited  where every subtask adds the number of locations it counted
+	 */
+	private static class CountTask extends RecursiveTask<HashMap<String, Integer>> {
+		private static final long serialVersionUID = 1L;
+		private final ArrayList<TreeMap<String, TreeSet<Integer>>> postings;
+		private final int start;
+		private final int end;
+		private final QueryPlan plan;
+		private final AtomicInteger visited;
+
+		public CountTask(ArrayList<TreeMap<String, TreeSet<Integer>>> postings, int start, int end, QueryPlan plan,
+				AtomicInteger visited) {
+			this.postings = postings;
+			this.start = start;
+			this.end = end;
+			this.plan = plan;
+			this.visited = visited;
+		}
+
+		@Override
+		protected HashMap<String, Integer> compute() {
+			if (end - start <= SUBTASK_SIZE) {
+				HashMap<String, Integer> counts = new HashMap<String, Integer>();
+				int counted = 0;
+				for (int i = start; i < end; i++) {
+					counted = countHelper(postings.get(i), counts, plan, counted);
+					if (plan.isPartial()) {
+						break;
+					}
+				}
+				visited.addAndGet(counted);
+				return counts;
+			}
+
+			int middle = (start + end) >>> 1;
+			CountTask left = new CountTask(postings, start, middle, plan, visited);
+			left.fork();
+			HashMap<String, Integer> counts = new CountTask(postings, middle, end, plan, visited).compute();
+			HashMap<String, Integer> other = left.join();
+
+			if (other.size() > counts.size()) { // merges the smaller counts into the larger ones
+				var temp = counts;
+				counts = other;
+				other = temp;
+			}
+			for (var entry : other.entrySet()) {
+				counts.merge(entry.getKey(), entry.getValue(), Integer::sum);
+			}
+			return counts;
 		}
 	}
 }
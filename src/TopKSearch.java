@@ -0,0 +1,168 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Finds only the best search results of a query using the MaxScore algorithm.
+ *
+ * The score of a location is the sum of count / word count over every query
+ * word, so the most a single word can ever add to a score is its highest count /
+ * word count at any location. Once there are enough results, the query words
+ * whose highest scores add up to less than the worst kept result can no longer
+ * bring a new location into the results on their own. Locations are then only
+ * found through the other words, and are dropped as soon as their best possible
+ * score falls below the worst kept result.
+ */
+public class TopKSearch {
+
+	/** How much the added up highest scores are allowed to be off by rounding. */
+	private static final double EPSILON = 1e-9;
+
+	/**
+	 * Calculates the highest score each word in the index can add to a search
+	 * result.
+	 *
+	 * @param index          the index to calculate from
+	 * @param locationsIndex the number of words at each location
+	 * @return a mapping of words to their highest scores
+	 */
+	public static HashMap<String, Double> bounds(TreeMap<String, TreeMap<String, TreeSet<Integer>>> index,
+			TreeMap<String, Integer> locationsIndex) {
+		HashMap<String, Double> bounds = new HashMap<String, Double>();
+		for (var word : index.entrySet()) {
+			double bound = 0;
+			for (var location : word.getValue().entrySet()) {
+				bound = Math.max(bound, (double) location.getValue().size() / locationsIndex.get(location.getKey()));
+			}
+			bounds.put(word.getKey(), bound);
+		}
+		return bounds;
+	}
+
+	/**
+	 * The postings of a single word in the index and where we are in them.
+	 */
+	private static class Term {
+		private final TreeMap<String, TreeSet<Integer>> posting;
+		private final double bound;
+		private String current;
+
+		public Term(TreeMap<String, TreeSet<Integer>> posting, double bound) {
+			this.posting = posting;
+			this.bound = bound;
+			this.current = posting.firstKey();
+		}
+	}
+
+	/**
+	 * Searches the index for the best search results of a query. The results are
+	 * the same as the first results of an exact or partial search.
+	 *
+	 * @param plan           the resolved plan of the query words
+	 * @param locationsIndex the number of words at each location
+	 * @param bounds         the highest score each word can add, as returned by
+	 *                       {@link #bounds(TreeMap, TreeMap)}
+	 * @param top            the number of results to keep
+	 * @return the sorted best search results
+	 */
+	public static ArrayList<SearchResult> search(QueryPlan plan, TreeMap<String, Integer> locationsIndex,
+			HashMap<String, Double> bounds, int top) {
+		ArrayList<Term> terms = new ArrayList<Term>();
+		for (var term : plan.terms()) {
+			for (int i = 0; i < term.getKeywords().size(); i++) {
+				terms.add(new Term(term.getPostings().get(i), bounds.get(term.getKeywords().get(i))));
+			}
+		}
+		terms.sort(Comparator.comparingDouble(t -> t.bound));
+
+		// upTo[i] is the highest score the first i terms can add up to
+		double[] upTo = new double[terms.size() + 1];
+		for (int i = 0; i < terms.size(); i++) {
+			upTo[i + 1] = upTo[i] + terms.get(i).bound;
+		}
+
+		// the worst kept result is at the head of the queue
+		PriorityQueue<SearchResult> best = new PriorityQueue<SearchResult>(Collections.reverseOrder());
+		double threshold = 0;
+		int essential = 0; // only terms from here on can bring in new locations
+		int step = 0;
+
+		while (!plan.expired(++step)) {
+			String location = null;
+			for (int i = essential; i < terms.size(); i++) {
+				String current = terms.get(i).current;
+				if (current != null && (location == null || current.compareTo(location) < 0)) {
+					location = current;
+				}
+			}
+			if (location == null) {
+				break;
+			}
+
+			int count = 0;
+			for (int i = essential; i < terms.size(); i++) {
+				Term term = terms.get(i);
+				if (location.equals(term.current)) {
+					count += term.posting.get(location).size();
+					term.current = term.posting.higherKey(location);
+					plan.visit(1);
+				}
+			}
+
+			int wordCount = locationsIndex.get(location);
+			boolean pruned = false;
+			for (int i = essential - 1; i >= 0 && !pruned; i--) {
+				if ((double) count / wordCount + upTo[i + 1] < threshold - EPSILON) {
+					pruned = true;
+				} else {
+					TreeSet<Integer> positions = terms.get(i).posting.get(location);
+					plan.visit(1);
+					if (positions != null) {
+						count += positions.size();
+					}
+				}
+			}
+			if (pruned) {
+				continue;
+			}
+
+			SearchResult result = new SearchResult(location, wordCount);
+			result.updateResult(count);
+			if (best.size() < top) {
+				best.add(result);
+			} else if (result.compareTo(best.peek()) < 0) {
+				best.poll();
+				best.add(result);
+			}
+
+			if (best.size() == top) {
+				threshold = best.peek().getScore();
+				while (essential < terms.size() && upTo[essential + 1] < threshold - EPSILON) {
+					essential++;
+				}
+			}
+		}
+
+		ArrayList<SearchResult> results = new ArrayList<SearchResult>(best);
+		Collections.sort(results);
+		return results;
+	}
+
+	/**
+	 * Keeps only the best search results of a sorted list.
+	 *
+	 * @param results the sorted search results
+	 * @param top     the number of results to keep, or 0 to keep every result
+	 * @return the best search results
+	 */
+	public static ArrayList<SearchResult> limit(ArrayList<SearchResult> results, int top) {
+		if (top <= 0 || results == null || results.size() <= top) {
+			return results;
+		}
+		return new ArrayList<SearchResult>(results.subList(0, top));
+	}
+}
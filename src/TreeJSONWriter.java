@@ -2,17 +2,27 @@ import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.StringWriter;
 import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.text.DecimalFormat;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Comparator;
 import java.util.TreeMap;
 import java.util.TreeSet;
 
 public class TreeJSONWriter {
 
+	/** The line separator, looked up once. */
+	private static final String NEWLINE = System.lineSeparator();
+
+	/** The fewest words each minion writes when writing an index in parallel. */
+	private static final int RANGE_SIZE = 256;
+
 	/**
 	 * Writes several tab <code>\t</code> symbols using the provided {@link Writer}.
 	 *
@@ -245,6 +255,82 @@ public class TreeJSONWriter {
 		}
 	}
 
+	/**
+	 * Writes the nested map of elements to the given path as the same nested
+	 * pretty JSON object as {@link #asNestedObject(TreeMap, Path)}, using several
+	 * threads. The words are split into contiguous ranges that are each written to
+	 * their own buffer by a minion, and the buffers are then written to the file in
+	 * order with a single gathering write.
+	 *
+	 * @param elements the elements to convert to JSON
+	 * @param path     the path to the file write to output
+	 * @param threads  the number of threads to use
+	 * @throws IOException if the writer encounters any issues
+	 */
+	public static void asNestedObject(TreeMap<String, TreeMap<String, TreeSet<Integer>>> elements, Path path,
+			int threads) throws IOException {
+		if (threads <= 1 || elements.size() < RANGE_SIZE) {
+			asNestedObject(elements, path);
+			return;
+		}
+
+		String[] words = elements.keySet().toArray(new String[0]);
+		int ranges = Math.min(threads * 4, (words.length + RANGE_SIZE - 1) / RANGE_SIZE);
+		ByteBuffer[] buffers = new ByteBuffer[ranges + 2];
+		buffers[0] = ByteBuffer.wrap(("{" + NEWLINE).getBytes(StandardCharsets.UTF_8));
+		buffers[ranges + 1] = ByteBuffer.wrap((NEWLINE + "}").getBytes(StandardCharsets.UTF_8));
+
+		IOException[] failure = new IOException[1];
+		WorkQueue minions = new WorkQueue(threads);
+		for (int i = 0; i < ranges; i++) {
+			int start = (int) ((long) words.length * i / ranges);
+			int end = (int) ((long) words.length * (i + 1) / ranges);
+			int slot = i + 1;
+
+			minions.execute(() -> {
+				try {
+					StringWriter writer = new StringWriter();
+					for (int w = start; w < end; w++) {
+						if (w > 0) {
+							writer.write(",");
+							writer.write(NEWLINE);
+						}
+						indent(1, writer);
+						writer.write('"' + words[w] + '"' + ": ");
+						writer.write("{");
+						asNestedObject(elements.get(words[w]), writer, 1);
+						writer.write(NEWLINE);
+						indent(1, writer);
+						writer.write("}");
+					}
+					buffers[slot] = ByteBuffer.wrap(writer.toString().getBytes(StandardCharsets.UTF_8));
+				} catch (IOException e) {
+					synchronized (failure) {
+						failure[0] = e;
+					}
+				} catch (RuntimeException e) { // the buffer of this range would be missing otherwise
+					synchronized (failure) {
+						failure[0] = new IOException("Could not write the words from " + words[start], e);
+					}
+				}
+			});
+		}
+		minions.finish();
+
+		synchronized (failure) {
+			if (failure[0] != null) {
+				throw failure[0];
+			}
+		}
+
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			while (buffers[buffers.length - 1].hasRemaining()) {
+				channel.write(buffers);
+			}
+		}
+	}
+
 	/**
 	 * Writes the nested map of elements as a nested pretty JSON object using the
 	 * provided {@link Writer} and indentation level.
@@ -326,47 +412,52 @@ public class TreeJSONWriter {
 		writer.write('{');
 		writer.write(System.lineSeparator());
 
-		// gets first entry and writes it
-		var firstElement = elements.firstEntry();
-		indent(level + 1, writer);
-		writer.write('"' + firstElement.getKey() + '"' + ": ");
-		writer.write("{");
-
-		asNestedObject(firstElement.getValue(), writer, level + 1);
+		boolean first = true;
+		for (var element : elements.entrySet()) {
+			writeWord(element.getKey(), element.getValue(), first, writer, level);
+			first = false;
+		}
 
 		writer.write(System.lineSeparator());
-		indent(level + 1, writer);
 		writer.write("}");
 
-		// iterates through the index
-		for (var element : elements.tailMap(elements.firstKey(), false).entrySet()) {
-
-			String key = element.getKey();
+	}
 
+	/**
+	 * Writes the postings of a single word as one member of the JSON object
+	 * written by {@link #asDoubleNestedObject(TreeMap, Writer, int)}, so an index
+	 * can be written one word at a time.
+	 *
+	 * @param word     the word
+	 * @param postings the locations and positions of the word
+	 * @param first    whether this is the first word in the object
+	 * @param writer   the writer to use
+	 * @param level    the initial indentation level of the object
+	 * @throws IOException if the writer encounters any issues
+	 */
+	public static void writeWord(String word, TreeMap<String, TreeSet<Integer>> postings, boolean first,
+			Writer writer, int level) throws IOException {
+		if (!first) {
 			writer.write(",");
 			writer.write(System.lineSeparator());
+		}
 
-			indent(level + 1, writer);
-			writer.write('"' + key + '"' + ": ");
-			writer.write("{");
+		indent(level + 1, writer);
+		writer.write('"' + word + '"' + ": ");
+		writer.write("{");
 
-			asNestedObject(element.getValue(), writer, level + 1);
-
-			writer.write(System.lineSeparator());
-			indent(level + 1, writer);
-			writer.write("}");
-		}
+		asNestedObject(postings, writer, level + 1);
 
 		writer.write(System.lineSeparator());
+		indent(level + 1, writer);
 		writer.write("}");
-
 	}
 
 	/**
-	 * Creates a bufferedwriter to write to the given path calls asNestedObject to
+	 * Creates a bufferedwriter to write to the given path calls asSearchResult to
 	 * write everything.
 	 *
-	 * @param elements the elements to convert to JSON
+	 * @param elements the sorted search results of every query
 	 * @param path     the path to the file write to output
 	 * @throws IOException if the writer encounters any issues
 	 *
@@ -380,153 +471,535 @@ public class TreeJSONWriter {
 
 	/**
 	 * Writes the searchResult of elements as a nested pretty JSON object using the
-	 * provided {@link Writer} and indentation level.
+	 * provided {@link Writer} and indentation level. The output is built up in a
+	 * large buffer that is handed to the writer in big chunks. The search results
+	 * of each query must already be sorted, which every search does.
 	 *
-	 * @param elements the elements to convert to JSON
+	 * @param elements the sorted search results of every query
 	 * @param writer   the writer to use
 	 * @param level    the initial indentation level
 	 * @throws IOException if the writer encounters any issues
 	 */
 	public static void asSearchResult(TreeMap<String, ArrayList<SearchResult>> elements, Writer writer, int level)
 			throws IOException {
-		
+		ResultBuffer buffer = new ResultBuffer(writer);
+
 		if (elements.isEmpty()) { // returns if there is nothing in the TreeMap
-			writer.write('[');
-			writer.write(System.lineSeparator());
-			writer.write("]");
+			buffer.append('[').append(NEWLINE).append(']');
+			buffer.flush();
 			return;
 		}
-		writer.write('[');
-		writer.write(System.lineSeparator());
+		buffer.append('[').append(NEWLINE);
 
-		for (var queries : elements.headMap(elements.lastKey(), false).keySet()) {
-			indent(level + 1, writer);
-			writer.write('{');
-			writer.write(System.lineSeparator());
-			indent(level + 2, writer);
-			writer.write('"');
-			writer.write("queries");
-			writer.write('"');
-			writer.write(": ");
-			writer.write('"');
-			writer.write(queries);
+		var iterator = elements.entrySet().iterator();
+		while (iterator.hasNext()) {
+			var entry = iterator.next();
+			writeQuery(entry.getKey(), entry.getValue(), !iterator.hasNext(), buffer, level);
+		}
+		buffer.append(']');
+		buffer.flush();
+	}
 
-			writer.write('"');
-			writer.write(",");
-			writer.write(System.lineSeparator());
-			indent(level + 2, writer);
-			writer.write('"');
-			writer.write("results");
-			writer.write('"');
-			writer.write(": [");
+	/**
+	 * Writes the search results of a single query as one element of the JSON
+	 * array written by {@link #asSearchResult(TreeMap, Writer, int)}, so results
+	 * can be written one query at a time.
+	 *
+	 * @param query   the query
+	 * @param results the sorted search results of the query
+	 * @param last    whether this is the last query in the array
+	 * @param writer  the writer to use
+	 * @param level   the initial indentation level of the array
+	 * @throws IOException if the writer encounters any issues
+	 */
+	public static void writeQuery(String query, ArrayList<SearchResult> results, boolean last, Writer writer,
+			int level) throws IOException {
+		ResultBuffer buffer = new ResultBuffer(writer);
+		writeQuery(query, results, last, buffer, level);
+		buffer.flush();
+	}
 
-			ArrayList<SearchResult> searchResult = new ArrayList<>();
-			for (var string2 : elements.get(queries)) {
-				searchResult.add(string2);
-			}
+	/**
+	 * Adds the search results of a single query to the buffer as one element of
+	 * the JSON array.
+	 *
+	 * @param query   the query
+	 * @param results the sorted search results of the query
+	 * @param last    whether this is the last query in the array
+	 * @param buffer  the buffer to add to
+	 * @param level   the initial indentation level of the array
+	 * @throws IOException if the buffer could not be written out
+	 */
+	private static void writeQuery(String query, ArrayList<SearchResult> results, boolean last, ResultBuffer buffer,
+			int level) throws IOException {
+		buffer.indent(level + 1).append('{').append(NEWLINE);
+		buffer.indent(level + 2).append("\"queries\": \"").append(query).append("\",").append(NEWLINE);
+		buffer.indent(level + 2).append("\"results\": [");
 
-			Collections.sort(searchResult);
-			writeSearchResult(searchResult, writer, level);
+		writeSearchResult(results, buffer, level);
 
-			writer.write(System.lineSeparator());
-			indent(level + 2, writer);
-			writer.write("]");
-			writer.write(System.lineSeparator());
-			indent(level + 1, writer);
-			writer.write("},");
-			writer.write(System.lineSeparator());
+		buffer.append(NEWLINE);
+		buffer.indent(level + 2).append(']').append(NEWLINE);
+		buffer.indent(level + 1).append(last ? "}" : "},").append(NEWLINE);
+	}
+
+	/**
+	 * Writes the searchResult of elements as a nested pretty JSON object using the
+	 * provided {@link Writer} and indentation level.
+	 *
+	 * @param results the sorted search results to write
+	 * @param writer  the writer to use
+	 * @param level   the initial indentation level
+	 * @throws IOException if the writer encounters any issues
+	 */
+	public static void writeSearchResult(ArrayList<SearchResult> results, Writer writer, int level)
+			throws IOException {
+		ResultBuffer buffer = new ResultBuffer(writer);
+		writeSearchResult(results, buffer, level);
+		buffer.flush();
+	}
+
+	/**
+	 * Adds the searchResult of elements to the buffer as a nested pretty JSON
+	 * object at the given indentation level.
+	 *
+	 * @param results the sorted search results to write
+	 * @param buffer  the buffer to add to
+	 * @param level   the initial indentation level
+	 * @throws IOException if the buffer could not be written out
+	 */
+	private static void writeSearchResult(ArrayList<SearchResult> results, ResultBuffer buffer, int level)
+			throws IOException {
+		int last = results.size() - 1;
+		for (int i = 0; i <= last; i++) {
+			SearchResult result = results.get(i);
+			buffer.append(NEWLINE);
+			buffer.indent(level + 3).append('{').append(NEWLINE);
+			buffer.indent(level + 4).append("\"where\": \"").append(result.getLocation()).append("\",").append(NEWLINE);
+			buffer.indent(level + 4).append("\"count\": ").append(result.getCount()).append(',').append(NEWLINE);
+			buffer.indent(level + 4).append("\"score\": ").appendScore(result.getScore()).append(NEWLINE);
+			buffer.indent(level + 3).append(i < last ? "}," : "}");
+			buffer.flushIfFull();
 		}
+	}
 
-		var queries = elements.lastKey();
-		indent(level + 1, writer);
-		writer.write('{');
-		writer.write(System.lineSeparator());
-		indent(level + 2, writer);
-		
-		writer.write('"');
-		writer.write("queries");
-		writer.write('"');
-		writer.write(": ");
-		writer.write('"');
-		writer.write(queries);
-		writer.write('"');
-		writer.write(",");
-		writer.write(System.lineSeparator());
-		indent(level + 2, writer);
-		
-		writer.write('"');
-		writer.write("results");
-		writer.write('"');
-		writer.write(": [");
+	/**
+	 * Writes the map of elements to the specified file in the given output format.
+	 *
+	 * @param elements the elements to convert to JSON
+	 * @param path     the path to the file write to output
+	 * @param format   the output format to use
+	 * @throws IOException if the writer encounters any issues
+	 *
+	 * @see #asObject(TreeMap, Writer, int)
+	 * @see #asNdjsonObject(TreeMap, Writer)
+	 */
+	public static void asObject(TreeMap<String, Integer> elements, Path path, OutputFormat format)
+			throws IOException {
+		try (BufferedWriter writer = format.newWriter(path)) {
+			if (format.isNdjson()) {
+				asNdjsonObject(elements, writer);
+			} else {
+				asObject(elements, writer, 0);
+			}
+		}
+	}
 
-		ArrayList<SearchResult> sResults = new ArrayList<>();
-		for (var string2 : elements.get(queries)) {
-			sResults.add(string2);
+	/**
+	 * Writes the nested map of elements to the specified file in the given output
+	 * format.
+	 *
+	 * @param elements the elements to convert to JSON
+	 * @param path     the path to the file write to output
+	 * @param format   the output format to use
+	 * @throws IOException if the writer encounters any issues
+	 *
+	 * @see #asDoubleNestedObject(TreeMap, Writer, int)
+	 * @see #asNdjsonNestedObject(TreeMap, Writer)
+	 */
+	public static void asNestedObject(TreeMap<String, TreeMap<String, TreeSet<Integer>>> elements, Path path,
+			OutputFormat format) throws IOException {
+		try (BufferedWriter writer = format.newWriter(path)) {
+			if (format.isNdjson()) {
+				asNdjsonNestedObject(elements, writer);
+			} else {
+				asDoubleNestedObject(elements, writer, 0);
+			}
 		}
+	}
 
-		Collections.sort(sResults);
-		writeSearchResult(sResults, writer, level);
+	/**
+	 * Writes the search results of every query to the specified file in the given
+	 * output format.
+	 *
+	 * @param elements the sorted search results of every query
+	 * @param path     the path to the file write to output
+	 * @param format   the output format to use
+	 * @throws IOException if the writer encounters any issues
+	 *
+	 * @see #asSearchResult(TreeMap, Writer, int)
+	 * @see #asNdjsonSearchResult(TreeMap, Writer)
+	 */
+	public static void asSearchResult(TreeMap<String, ArrayList<SearchResult>> elements, Path path,
+			OutputFormat format) throws IOException {
+		try (BufferedWriter writer = format.newWriter(path)) {
+			if (format.isNdjson()) {
+				asNdjsonSearchResult(elements, writer);
+			} else {
+				asSearchResult(elements, writer, 0);
+			}
+		}
+	}
 
-		writer.write(System.lineSeparator());
-		indent(level + 2, writer);
-		writer.write("]");
-		writer.write(System.lineSeparator());
-		indent(level + 1, writer);
-		writer.write("}");
-		writer.write(System.lineSeparator());
-		writer.write("]");
+	/**
+	 * Writes the map of locations to word counts as newline-delimited JSON, one
+	 * compact {@code {"where": ..., "count": ...}} record per line.
+	 *
+	 * @param elements the elements to convert to JSON
+	 * @param writer   the writer to use
+	 * @throws IOException if the writer encounters any issues
+	 */
+	public static void asNdjsonObject(TreeMap<String, Integer> elements, Writer writer) throws IOException {
+		ResultBuffer buffer = new ResultBuffer(writer);
+		for (var element : elements.entrySet()) {
+			buffer.append("{\"where\":\"").append(element.getKey()).append("\",\"count\":")
+					.append(element.getValue()).append('}').append('\n');
+			buffer.flushIfFull();
+		}
+		buffer.flush();
 	}
 
 	/**
-	 * Writes the searchResult of elements as a nested pretty JSON object using the
-	 * provided {@link Writer} and indentation level.
+	 * Writes the nested map of elements as newline-delimited JSON, one compact
+	 * {@code {"word": ..., "postings": {location: [positions]}}} record per word.
 	 *
 	 * @param elements the elements to convert to JSON
 	 * @param writer   the writer to use
-	 * @param level    the initial indentation level
 	 * @throws IOException if the writer encounters any issues
 	 */
-	public static void writeSearchResult(ArrayList<SearchResult> results, Writer writer, int level)
+	public static void asNdjsonNestedObject(TreeMap<String, TreeMap<String, TreeSet<Integer>>> elements,
+			Writer writer) throws IOException {
+		ResultBuffer buffer = new ResultBuffer(writer);
+		for (var element : elements.entrySet()) {
+			writeNdjsonWord(element.getKey(), element.getValue(), buffer);
+		}
+		buffer.flush();
+	}
+
+	/**
+	 * Writes the postings of a single word as one compact
+	 * {@code {"word": ..., "postings": {location: [positions]}}} line.
+	 *
+	 * @param word     the word
+	 * @param postings the locations and positions of the word
+	 * @param writer   the writer to use
+	 * @throws IOException if the writer encounters any issues
+	 */
+	public static void writeNdjsonWord(String word, TreeMap<String, TreeSet<Integer>> postings, Writer writer)
+			throws IOException {
+		ResultBuffer buffer = new ResultBuffer(writer, 1024); // called once for every word of a merge
+		writeNdjsonWord(word, postings, buffer);
+		buffer.flush();
+	}
+
+	/**
+	 * Adds the postings of a single word to the buffer as one compact line.
+	 *
+	 * @param word     the word
+	 * @param postings the locations and positions of the word
+	 * @param buffer   the buffer to add to
+	 * @throws IOException if the buffer could not be written out
+	 */
+	private static void writeNdjsonWord(String word, TreeMap<String, TreeSet<Integer>> postings, ResultBuffer buffer)
+			throws IOException {
+		buffer.append("{\"word\":\"").append(word).append("\",\"postings\":{");
+
+		var locations = postings.entrySet().iterator();
+		while (locations.hasNext()) {
+			var location = locations.next();
+			buffer.append('"').append(location.getKey()).append("\":[");
+
+			var positions = location.getValue().iterator();
+			while (positions.hasNext()) {
+				buffer.append(positions.next());
+				if (positions.hasNext()) {
+					buffer.append(',');
+				}
+			}
+			buffer.append(locations.hasNext() ? "]," : "]");
+		}
+		buffer.append("}}").append('\n');
+		buffer.flushIfFull();
+	}
+
+	/**
+	 * Writes the search results of every query as newline-delimited JSON, one
+	 * compact record per query.
+	 *
+	 * @param elements the sorted search results of every query
+	 * @param writer   the writer to use
+	 * @throws IOException if the writer encounters any issues
+	 *
+	 * @see #writeNdjsonQuery(String, ArrayList, Writer)
+	 */
+	public static void asNdjsonSearchResult(TreeMap<String, ArrayList<SearchResult>> elements, Writer writer)
+			throws IOException {
+		ResultBuffer buffer = new ResultBuffer(writer);
+		for (var element : elements.entrySet()) {
+			writeNdjsonQuery(element.getKey(), element.getValue(), buffer);
+		}
+		buffer.flush();
+	}
+
+	/**
+	 * Writes the search results of a single query as one compact
+	 * {@code {"queries": ..., "results": [...]}} line.
+	 *
+	 * @param query   the query
+	 * @param results the sorted search results of the query
+	 * @param writer  the writer to use
+	 * @throws IOException if the writer encounters any issues
+	 */
+	public static void writeNdjsonQuery(String query, ArrayList<SearchResult> results, Writer writer)
+			throws IOException {
+		ResultBuffer buffer = new ResultBuffer(writer);
+		writeNdjsonQuery(query, results, buffer);
+		buffer.flush();
+	}
+
+	/**
+	 * Adds the search results of a single query to the buffer as one compact line.
+	 *
+	 * @param query   the query
+	 * @param results the sorted search results of the query
+	 * @param buffer  the buffer to add to
+	 * @throws IOException if the buffer could not be written out
+	 */
+	private static void writeNdjsonQuery(String query, ArrayList<SearchResult> results, ResultBuffer buffer)
 			throws IOException {
-		for (var searchResults : results) {
+		buffer.append("{\"queries\":\"").append(query).append("\",\"results\":[");
+		int last = results.size() - 1;
+		for (int i = 0; i <= last; i++) {
+			SearchResult result = results.get(i);
+			buffer.append("{\"where\":\"").append(result.getLocation()).append("\",\"count\":")
+					.append(result.getCount()).append(",\"score\":").appendScore(result.getScore());
+			buffer.append(i < last ? "}," : "}");
+			buffer.flushIfFull();
+		}
+		buffer.append("]}").append('\n');
+		buffer.flushIfFull();
+	}
+
+	/**
+	 * A large character buffer that search results are written into before they
+	 * are handed to a {@link Writer}.
+	 */
+	private static class ResultBuffer {
+		/** The number of characters kept before they are written out. */
+		private static final int SIZE = 1 << 16;
+
+		private final Writer writer;
+		private final StringBuilder buffer;
+		private final char[] chars;
+
+		public ResultBuffer(Writer writer) {
+			this(writer, SIZE + 1024);
+		}
+
+		/**
+		 * Initializes a buffer that starts out smaller, for writing a single record.
+		 *
+		 * @param writer   the writer to write out to
+		 * @param capacity the number of characters to make room for at first
+		 */
+		public ResultBuffer(Writer writer, int capacity) {
+			this.writer = writer;
+			this.buffer = new StringBuilder(capacity);
+			this.chars = new char[capacity];
+		}
+
+		public ResultBuffer append(char c) {
+			buffer.append(c);
+			return this;
+		}
+
+		public ResultBuffer append(String text) {
+			buffer.append(text);
+			return this;
+		}
+
+		public ResultBuffer append(int number) {
+			buffer.append(number);
+			return this;
+		}
+
+		/**
+		 * Adds the tab symbols for the indentation level.
+		 *
+		 * @param times the number of tabs
+		 * @return this buffer
+		 */
+		public ResultBuffer indent(int times) {
+			for (int i = 0; i < times; i++) {
+				buffer.append('\t');
+			}
+			return this;
+		}
+
+		/**
+		 * Adds the score with exactly six decimal places, the same as
+		 * {@code new DecimalFormat("0.000000")}. Scores that are not close to halfway
+		 * between two outputs are rounded with plain arithmetic, and the rest are
+		 * rounded half even on the exact value of the double, like DecimalFormat.
+		 *
+		 * @param score the score to add
+		 * @return this buffer
+		 */
+		public ResultBuffer appendScore(double score) {
+			double scaled = score * 1_000_000;
+			double floor = Math.floor(scaled);
+			double fraction = scaled - floor;
+
+			if (score >= 0 && scaled < 1e12 && fraction > 1e-4 && fraction < 1 - 1e-4
+					&& Math.abs(fraction - 0.5) > 1e-4) {
+				long rounded = (long) floor + (fraction > 0.5 ? 1 : 0);
+				int decimals = (int) (rounded % 1_000_000);
+				buffer.append(rounded / 1_000_000).append('.');
+				for (int digit = 100_000; digit > decimals && digit > 1; digit /= 10) {
+					buffer.append('0');
+				}
+				buffer.append(decimals);
+			} else {
+				buffer.append(new BigDecimal(score).setScale(6, RoundingMode.HALF_EVEN).toPlainString());
+			}
+			return this;
+		}
+
+		/**
+		 * Writes the buffer out once it is full.
+		 *
+		 * @throws IOException if the writer encounters any issues
+		 */
+		public void flushIfFull() throws IOException {
+			if (buffer.length() >= SIZE) {
+				flush();
+			}
+		}
+
+		/**
+		 * Writes everything in the buffer out.
+		 *
+		 * @throws IOException if the writer encounters any issues
+		 */
+		public void flush() throws IOException {
+			int length = buffer.length();
+			char[] out = length <= chars.length ? chars : new char[length];
+			buffer.getChars(0, length, out, 0);
+			writer.write(out, 0, length);
+			buffer.setLength(0);
+		}
+	}
+
+	/**
+	 * Creates a bufferedwriter to write to the given path calls asExplain to write
+	 * everything.
+	 *
+	 * @param plans the plan of every query
+	 * @param path  the path to the file write to output
+	 * @throws IOException if the writer encounters any issues
+	 */
+	public static void asExplain(TreeMap<String, QueryPlan> plans, Path path) throws IOException {
+		try (BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+			asExplain(plans, writer, 0);
+		}
+	}
+
+	/**
+	 * Writes the plan of every query as a pretty JSON array using the provided
+	 * {@link Writer} and indentation level. Each query word lists how many index
+	 * words it matched and how many postings it was estimated to visit, in the
+	 * order the words were searched.
+	 *
+	 * @param plans  the plan of every query
+	 * @param writer the writer to use
+	 * @param level  the initial indentation level
+	 * @throws IOException if the writer encounters any issues
+	 */
+	public static void asExplain(TreeMap<String, QueryPlan> plans, Writer writer, int level) throws IOException {
+		writer.write('[');
+
+		var iterator = plans.entrySet().iterator();
+		while (iterator.hasNext()) {
+			var entry = iterator.next();
+			QueryPlan plan = entry.getValue();
+
 			writer.write(System.lineSeparator());
-			indent(level + 3, writer);
+			indent(level + 1, writer);
 			writer.write('{');
 			writer.write(System.lineSeparator());
-			indent(level + 4, writer);
-			writer.write('"');
-			writer.write("where");
-			writer.write('"');
+			indent(level + 2, writer);
+			quote("queries", writer);
 			writer.write(": ");
-			writer.write('"');
-			writer.write(searchResults.getLocation());
-			writer.write('"');
+			quote(entry.getKey(), writer);
 			writer.write(",");
 			writer.write(System.lineSeparator());
-			indent(level + 4, writer);
-			
-			writer.write('"');
-			writer.write("count");
-			writer.write('"');
-			writer.write(": ");
-			writer.write(searchResults.getCount().toString());
+			indent(level + 2, writer);
+			quote("terms", writer);
+			writer.write(": [");
+
+			// missing words are searched first, since they are skipped
+			var terms = new ArrayList<QueryPlan.Term>(plan.inOrder());
+			terms.sort(Comparator.comparingInt(QueryPlan.Term::getEstimate));
+			for (int i = 0; i < terms.size(); i++) {
+				QueryPlan.Term term = terms.get(i);
+				writer.write(System.lineSeparator());
+				indent(level + 3, writer);
+				writer.write('{');
+				writer.write(System.lineSeparator());
+				indent(level + 4, writer);
+				quote("word", writer);
+				writer.write(": ");
+				quote(term.getWord(), writer);
+				writer.write(",");
+				writer.write(System.lineSeparator());
+				indent(level + 4, writer);
+				quote("matches", writer);
+				writer.write(": " + term.getMatches());
+				writer.write(",");
+				writer.write(System.lineSeparator());
+				indent(level + 4, writer);
+				quote("estimated", writer);
+				writer.write(": " + term.getEstimate());
+				writer.write(System.lineSeparator());
+				indent(level + 3, writer);
+				writer.write(i < terms.size() - 1 ? "}," : "}");
+			}
+
+			writer.write(System.lineSeparator());
+			indent(level + 2, writer);
+			writer.write("],");
+			writer.write(System.lineSeparator());
+			indent(level + 2, writer);
+			quote("estimated", writer);
+			writer.write(": " + plan.getEstimated());
 			writer.write(",");
 			writer.write(System.lineSeparator());
-			indent(level + 4, writer);
-			
-			writer.write('"');
-			writer.write("score");
-			writer.write('"');
-			writer.write(": ");
-			DecimalFormat FORMATTER = new DecimalFormat("0.000000");
-			writer.write(FORMATTER.format(searchResults.getScore()));
+			indent(level + 2, writer);
+			quote("visited", writer);
+			writer.write(": " + plan.getVisited());
+			if (plan.isPartial()) { // only written for searches that hit their deadline
+				writer.write(",");
+				writer.write(System.lineSeparator());
+				indent(level + 2, writer);
+				quote("partial", writer);
+				writer.write(": true");
+			}
 			writer.write(System.lineSeparator());
-			indent(level + 3, writer);
-			writer.write("}");
-			
-			if (!searchResults.equals(results.get(results.size() - 1))) {
-				writer.write(',');
-			} 
+			indent(level + 1, writer);
+			writer.write(iterator.hasNext() ? "}," : "}");
 		}
+
+		writer.write(System.lineSeparator());
+		writer.write("]");
 	}
-}
\ No newline at end of file
+}
@@ -1,4 +1,5 @@
 import java.util.LinkedList;
+import java.util.concurrent.Executor;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -8,11 +9,18 @@ import org.apache.logging.log4j.Logger;
  * Brian Goetz. It is up to the user of this class to keep track of whether
  * there is any pending work remaining.
  *
+ * The queue can be given a capacity. Once that many requests are waiting,
+ * {@link #execute(Runnable)} either waits for a worker to take one, or runs the
+ * new request on the calling thread, so a fast producer is slowed down to the
+ * pace of the workers instead of filling memory with waiting requests. Workers
+ * that add more work to a full queue always run it themselves, since waiting
+ * on their own queue could wait forever.
+ *
  * @see <a href=
  *      "http://www.ibm.com/developerworks/library/j-jtp0730/index.html">Java
  *      Theory and Practice: Thread Pools and Work Queues</a>
  */
-public class WorkQueue {
+public class WorkQueue implements Executor {
 	// end of lab10
 	public static final Logger log = LogManager.getLogger(Driver.class);
 
@@ -23,12 +31,18 @@ public class WorkQueue {
 	private final PoolWorker[] workers;
 
 	/** Queue of pending work requests. */
-	private final LinkedList<Runnable> queue;
+	private final LinkedList<Task> queue;
 
 	/** Used to signal the queue should be shutdown. */
 	private volatile boolean shutdown;
 	private volatile int pending;
 
+	/** The most requests that can wait in the queue. */
+	private final int capacity;
+
+	/** Whether a full queue runs new requests on the caller instead of waiting. */
+	private final boolean callerRuns;
+
 	/** The default number of threads to use when not specified. */
 	public static final int DEFAULT = 5;
 
@@ -54,8 +68,22 @@ public class WorkQueue {
 	}
 
 	public WorkQueue(int threads) {
-		this.queue = new LinkedList<Runnable>();
+		this(threads, Integer.MAX_VALUE, false);
+	}
+
+	/**
+	 * Starts a work queue with the specified number of threads and a capacity.
+	 *
+	 * @param threads    number of worker threads; should be greater than 1
+	 * @param capacity   the most requests that can wait in the queue
+	 * @param callerRuns whether a full queue runs new requests on the calling
+	 *                   thread, instead of waiting until there is room
+	 */
+	public WorkQueue(int threads, int capacity, boolean callerRuns) {
+		this.queue = new LinkedList<Task>();
 		this.workers = new PoolWorker[threads];
+		this.capacity = Math.max(1, capacity);
+		this.callerRuns = callerRuns;
 
 		this.shutdown = false;
 
@@ -68,47 +96,123 @@ public class WorkQueue {
 
 	/**
 	 * Adds a work request to the queue. A thread will process this request when
-	 * available.
+	 * available. If the queue is full, waits until there is room or runs the
+	 * request right away on this thread. Once the queue is shut down, no worker
+	 * would take the request, so it is run on this thread instead.
 	 *
 	 * @param r work request (in the form of a {@link Runnable} object)
 	 */
+	@Override
 	public void execute(Runnable r) {
 		synchronized (queue) {
-			pending++;
-			queue.addLast(r);
-			queue.notifyAll();
+			if (!shutdown && queue.size() < capacity) {
+				add(r);
+				return;
+			}
+
+			if (!shutdown && !callerRuns && !isWorker()) {
+				long start = System.nanoTime();
+				while (queue.size() >= capacity && !shutdown) {
+					try {
+						queue.wait();
+					} catch (InterruptedException e) { // adds the request anyway, so no work is lost
+						log.debug("Interrupted waiting for room in the queue", e);
+						Thread.currentThread().interrupt();
+						break;
+					}
+				}
+				Metrics.record("queue.blocked.nanos", System.nanoTime() - start);
+				if (!shutdown) {
+					add(r);
+					return;
+				}
+			}
+		}
+
+		Metrics.increment("queue.caller.runs");
+		try {
+			r.run();
+		} catch (RuntimeException ex) {
+			System.err.println("Warning: Work queue encountered an exception while running.");
 		}
 	}
 
 	/**
-	 * Waits for all pending work to be finished.
+	 * Adds a work request to the end of the queue. Callers must hold the lock of
+	 * the queue.
+	 *
+	 * @param r work request (in the form of a {@link Runnable} object)
 	 */
-	public void finish() {
-		// finish = true;
+	private void add(Runnable r) {
+		pending++;
+		queue.addLast(new Task(r));
+		queue.notifyAll();
+		Metrics.record("queue.depth", queue.size());
+
+		SearchEvents.TaskQueued event = new SearchEvents.TaskQueued();
+		if (event.shouldCommit()) {
+			event.depth = queue.size();
+			event.commit();
+		}
+	}
+
+	/**
+	 * @return true if the calling thread is one of the workers of this queue
+	 */
+	private boolean isWorker() {
+		for (var worker : workers) {
+			if (worker == Thread.currentThread()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the most requests that can wait in the queue
+	 */
+	public int capacity() {
+		return capacity;
+	}
+
+	/**
+	 * Waits for all pending work to be finished without shutting down the queue, so
+	 * more work can be added afterwards.
+	 */
+	public void await() {
 		synchronized (queue) {
 			while (pending > 0) {
 				try {
-					//synchronized (queue) {
-						queue.wait();
-						//System.out.println("We have awaken and pending is" + pending);
-					//}
+					queue.wait();
 				} catch (InterruptedException e) {
 					log.debug("queue.wait failed", e);
 				}
 			}
+		}
+	}
+
+	/**
+	 * Waits for all pending work to be finished.
+	 */
+	public void finish() {
+		synchronized (queue) {
+			await();
 			shutdown();
 		}
 	}
 
 	/**
 	 * Asks the queue to shutdown. Any unprocessed work will not be finished, but
-	 * threads in-progress will not be interrupted.
+	 * threads in-progress will not be interrupted. Unprocessed work is dropped from
+	 * the pending work, so {@link #await()} does not wait for it.
 	 */
 	public void shutdown() {
 		// safe to do unsynchronized due to volatile keyword
 		shutdown = true;
 
 		synchronized (this.queue) {
+			pending -= queue.size();
+			queue.clear();
 			queue.notifyAll();
 		}
 	}
@@ -122,6 +226,19 @@ public class WorkQueue {
 		return workers.length;
 	}
 
+	/**
+	 * A work request and when it was added to the queue.
+	 */
+	private static class Task {
+		private final Runnable runnable;
+		private final long queued;
+
+		public Task(Runnable runnable) {
+			this.runnable = runnable;
+			this.queued = System.nanoTime();
+		}
+	}
+
 	/**
 	 * Waits until work is available in the work queue. When work is found, will
 	 * remove the work from the queue and run it. If a shutdown is detected, will
@@ -132,7 +249,7 @@ public class WorkQueue {
 
 		@Override
 		public void run() {
-			Runnable r = null;
+			Task r = null;
 
 			while (true) {
 				synchronized (queue) {
@@ -152,27 +269,34 @@ public class WorkQueue {
 						break;
 					} else {
 						r = queue.removeFirst();
+						if (queue.size() == capacity - 1) { // wakes up callers waiting for room in a full queue
+							queue.notifyAll();
+						}
 					}
 				}
 
+				long start = System.nanoTime();
+				SearchEvents.TaskRun event = new SearchEvents.TaskRun();
+				event.begin();
 				try {
-					log.debug("Pending is:" + pending);
-					r.run();
+					log.debug("Pending is: {}", pending);
+					r.runnable.run();
 				} catch (RuntimeException ex) {
 					System.err.println("Warning: Work queue encountered an exception while running.");
 				}
-				synchronized (queue) {
-					pending--;
-					queue.notifyAll();
-					log.debug("Pending has been decremented and threads have been notified" + pending);
-					// System.out.println("Pending has been decremented and threads have been
-					// notified"+pending);
+				Metrics.record("queue.wait.nanos", start - r.queued);
+				Metrics.time("queue.task.nanos", start);
+				event.end();
+				if (event.shouldCommit()) {
+					event.task = r.runnable.getClass().getSimpleName();
+					event.waitTime = start - r.queued;
+					event.commit();
 				}
 				synchronized (queue) {
+					pending--;
 					queue.notifyAll();
 				}
-				// System.out.println("Pending after everything is done"+pending);
-				log.debug("Pending after:" + pending);
+				log.debug("Pending after: {}", pending);
 			}
 		}
 	}